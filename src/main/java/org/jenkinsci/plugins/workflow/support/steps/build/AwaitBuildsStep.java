@@ -0,0 +1,50 @@
+package org.jenkinsci.plugins.workflow.support.steps.build;
+
+import hudson.Extension;
+import java.util.List;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Waits for downstream builds started by {@code build(job: …, returnHandle: true)}.
+ */
+public class AwaitBuildsStep extends AbstractStepImpl {
+
+    private final List<DownstreamBuildHandle> handles;
+
+    @DataBoundConstructor
+    public AwaitBuildsStep(List<DownstreamBuildHandle> handles) {
+        this.handles = handles;
+    }
+
+    public List<DownstreamBuildHandle> getHandles() {
+        return handles;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends AbstractStepDescriptorImpl {
+
+        public DescriptorImpl() {
+            super(AwaitBuildsStepExecution.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "awaitBuilds";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Wait for downstream builds";
+        }
+
+        /** Handles can only come from a script. */
+        @Override
+        public boolean isAdvanced() {
+            return true;
+        }
+
+    }
+
+}
@@ -0,0 +1,222 @@
+package org.jenkinsci.plugins.workflow.support.steps.build;
+
+import com.google.inject.Inject;
+import hudson.AbortException;
+import hudson.model.Executor;
+import hudson.model.Queue;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.util.Timer;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
+import org.jenkinsci.plugins.workflow.steps.FlowInterruptedException;
+
+/**
+ * Waits for the builds behind some {@link DownstreamBuildHandle}s.
+ * Rather than carrying a {@link BuildTriggerAction}, which would need the context of the step that scheduled them,
+ * the downstream builds are watched by queue item ID through {@link BuildTriggerRegistry#await}.
+ */
+public class AwaitBuildsStepExecution extends AbstractStepExecutionImpl {
+
+    private static final Logger LOGGER = Logger.getLogger(AwaitBuildsStepExecution.class.getName());
+
+    @Inject(optional=true) transient AwaitBuildsStep step;
+
+    private List<DownstreamBuildHandle> handles;
+    private RunWrapper[] results;
+    private Throwable[] failures;
+    private boolean[] done;
+    private boolean finished;
+
+    @Override
+    public boolean start() throws Exception {
+        handles = new ArrayList<>(step.getHandles());
+        results = new RunWrapper[handles.size()];
+        failures = new Throwable[handles.size()];
+        done = new boolean[handles.size()];
+        if (handles.isEmpty()) {
+            getContext().onSuccess(new ArrayList<RunWrapper>());
+            return true;
+        }
+        watch();
+        return false;
+    }
+
+    @Override public void onResume() {
+        super.onResume();
+        Timer.get().submit(() -> watch());
+    }
+
+    /** Registers for notifications, then catches up on anything which already happened. */
+    private void watch() {
+        for (DownstreamBuildHandle handle : handles) {
+            BuildTriggerRegistry.await(handle.getQueueId(), this);
+        }
+        try (ACLContext ctx = ACL.as(ACL.SYSTEM)) { // handles were created by a build step which checked permissions
+            for (int i = 0; i < handles.size(); i++) {
+                check(i);
+            }
+        }
+        maybeFinish();
+    }
+
+    private void check(int i) {
+        DownstreamBuildHandle handle = handles.get(i);
+        Queue.Item item = Queue.getInstance().getItem(handle.getQueueId());
+        if (item instanceof Queue.LeftItem && ((Queue.LeftItem) item).isCancelled()) {
+            record(i, null, new AbortException("Build of " + handle.getJob() + " was cancelled"));
+            return;
+        }
+        if (item != null && !(item instanceof Queue.LeftItem)) {
+            return; // still queued
+        }
+        Run<?,?> run = handle.getRun();
+        if (run != null) {
+            if (!run.isBuilding()) {
+                record(i, run);
+            }
+        } else if (item == null) {
+            record(i, null, new AbortException("Could not find the downstream build of " + handle));
+        }
+    }
+
+    /** Called by {@link BuildTriggerRegistry} when a watched build completes. */
+    void completed(@Nonnull Run<?,?> run) {
+        for (int i = 0; i < handles.size(); i++) {
+            if (handles.get(i).getQueueId() == run.getQueueId()) {
+                record(i, run);
+            }
+        }
+        // called on the thread shared by all run listeners, so resume the step elsewhere, as BuildTriggerDispatcher does
+        Timer.get().submit(this::maybeFinish);
+    }
+
+    /** Called by {@link BuildTriggerRegistry} when a watched queue item is cancelled. */
+    void cancelled(@Nonnull Queue.LeftItem li) {
+        for (int i = 0; i < handles.size(); i++) {
+            if (handles.get(i).getQueueId() == li.getId()) {
+                record(i, null, new AbortException("Build of " + li.task.getFullDisplayName() + " was cancelled"));
+            }
+        }
+        // called under the queue lock
+        Timer.get().submit(this::maybeFinish);
+    }
+
+    private void record(int i, Run<?,?> run) {
+        Result result = run.getResult();
+        if (!handles.get(i).isPropagate() || result == Result.SUCCESS) {
+            record(i, new RunWrapper(run, false), null);
+        } else {
+            record(i, null, new FlowInterruptedException(result != null ? result : /* probably impossible */ Result.FAILURE, new DownstreamFailureCause(run)));
+        }
+    }
+
+    private synchronized void record(int i, @CheckForNull RunWrapper result, @CheckForNull Throwable failure) {
+        if (done[i]) {
+            return;
+        }
+        LOGGER.log(Level.FINE, "{0} done in {1}", new Object[] {handles.get(i), getContext()});
+        done[i] = true;
+        results[i] = result;
+        failures[i] = failure;
+    }
+
+    private void maybeFinish() {
+        Throwable failure = null;
+        List<RunWrapper> outcome = null;
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            Map<String,Throwable> failed = new LinkedHashMap<>();
+            for (int i = 0; i < done.length; i++) {
+                if (!done[i]) {
+                    return;
+                }
+                if (failures[i] != null) {
+                    failed.put(handles.get(i).toString(), failures[i]);
+                }
+            }
+            finished = true;
+            if (!failed.isEmpty()) {
+                failure = BuildAllStepExecution.combinedFailure(failed, handles.size());
+            } else {
+                outcome = new ArrayList<>(Arrays.asList(results));
+            }
+        }
+        unwatch();
+        if (failure != null) {
+            getContext().onFailure(failure);
+        } else {
+            getContext().onSuccess(outcome);
+        }
+    }
+
+    private void unwatch() {
+        for (DownstreamBuildHandle handle : handles) {
+            BuildTriggerRegistry.unawait(handle.getQueueId(), this);
+        }
+    }
+
+    /** Aborts whatever we were still waiting for, as {@link BuildTriggerStepExecution#stop} would. */
+    @Override
+    public void stop(Throwable cause) throws Exception {
+        List<DownstreamBuildHandle> remaining = new ArrayList<>();
+        synchronized (this) {
+            if (!finished) {
+                finished = true;
+                for (int i = 0; i < done.length; i++) {
+                    if (!done[i]) {
+                        remaining.add(handles.get(i));
+                    }
+                }
+            }
+        }
+        unwatch();
+        Queue q = Queue.getInstance();
+        try (ACLContext ctx = ACL.as(ACL.SYSTEM)) {
+            for (DownstreamBuildHandle handle : remaining) {
+                Queue.Item item = q.getItem(handle.getQueueId());
+                if (item != null && !(item instanceof Queue.LeftItem)) {
+                    q.cancel(item);
+                    continue;
+                }
+                Run<?,?> run = handle.getRun();
+                Executor e = run instanceof Queue.Executable ? Executor.of((Queue.Executable) run) : null;
+                if (e != null) {
+                    e.interrupt(Result.ABORTED, new BuildTriggerCancelledCause(cause));
+                }
+            }
+        }
+        getContext().onFailure(cause);
+    }
+
+    @Override public synchronized String getStatus() {
+        List<DownstreamBuildHandle> waiting = new ArrayList<>();
+        for (int i = 0; i < done.length; i++) {
+            if (!done[i]) {
+                waiting.add(handles.get(i));
+            }
+        }
+        return "waiting for " + waiting;
+    }
+
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+    }
+
+    private static final long serialVersionUID = 1L;
+
+}
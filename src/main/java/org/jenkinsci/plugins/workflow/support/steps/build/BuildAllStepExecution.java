@@ -0,0 +1,352 @@
+package org.jenkinsci.plugins.workflow.support.steps.build;
+
+import com.google.inject.Inject;
+import hudson.AbortException;
+import hudson.model.Action;
+import hudson.model.Cause;
+import hudson.model.CauseAction;
+import hudson.model.Executor;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.model.CauseOfInterruption;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import org.jenkinsci.plugins.workflow.actions.LabelAction;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
+import org.jenkinsci.plugins.workflow.steps.FlowInterruptedException;
+import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
+
+/**
+ * Schedules the builds of a {@link BuildAllStep}, at most {@link BuildAllStep#getMaxInFlight} at a time.
+ * Each downstream build carries a {@link BuildTriggerAction.Trigger} with our context and its own key,
+ * so completions come back through {@link BuildTriggerRegistry#batchDone} rather than to the context directly.
+ */
+public class BuildAllStepExecution extends AbstractStepExecutionImpl {
+
+    private static final Logger LOGGER = Logger.getLogger(BuildAllStepExecution.class.getName());
+
+    @StepContextParameter private transient TaskListener listener;
+    @StepContextParameter private transient Run<?,?> invokingRun;
+    @StepContextParameter private transient FlowNode node;
+
+    @Inject(optional=true) transient BuildAllStep step;
+
+    private int maxInFlight;
+
+    /** Keys of all requested builds, in order. */
+    private final List<String> keys = new ArrayList<>();
+
+    /** Builds not yet scheduled. */
+    private final LinkedList<DownstreamBuild> pending = new LinkedList<>();
+
+    /** Queue item IDs of builds scheduled but not yet finished, by key; 0 while still being scheduled. */
+    private final Map<String,Long> inFlight = new HashMap<>();
+
+    /** {@link Run#getExternalizableId} of started builds, by key. */
+    private final Map<String,String> runIds = new HashMap<>();
+
+    private final Map<String,RunWrapper> results = new HashMap<>();
+
+    private final Map<String,Throwable> failures = new LinkedHashMap<>();
+
+    /** Cause passed to {@link #stop}, if any. */
+    private @CheckForNull Throwable stopped;
+
+    private boolean finished;
+
+    /** Why {@link BuildTriggerThrottle} is holding back the next pending build, if it is. */
+    private transient @CheckForNull String admission;
+
+    private transient @CheckForNull Runnable retry;
+
+    @Override
+    public boolean start() throws Exception {
+        maxInFlight = step.getMaxInFlight();
+        Set<String> seen = new HashSet<>();
+        for (DownstreamBuild build : step.getBuilds()) {
+            String key = build.effectiveKey();
+            if (!seen.add(key)) {
+                throw new AbortException("More than one build is named " + key + "; use key to distinguish them");
+            }
+            keys.add(key);
+            pending.add(build);
+        }
+        if (keys.isEmpty()) {
+            getContext().onSuccess(new LinkedHashMap<String,RunWrapper>());
+            return true;
+        }
+        node.addAction(new LabelAction(Messages.BuildAllStepExecution_building_(keys.size())));
+        BuildTriggerRegistry.registerBatch(getContext(), this);
+        fill();
+        return false;
+    }
+
+    @Override public void onResume() {
+        super.onResume();
+        BuildTriggerRegistry.reconcile();
+        BuildTriggerRegistry.registerBatch(getContext(), this);
+        Timer.get().submit(() -> fill());
+    }
+
+    /** Schedules pending builds until {@link #maxInFlight} is reached. */
+    private void fill() {
+        while (true) {
+            DownstreamBuild build;
+            synchronized (this) {
+                if (stopped != null || pending.isEmpty() || (maxInFlight > 0 && inFlight.size() >= maxInFlight)) {
+                    break;
+                }
+                build = pending.removeFirst();
+                inFlight.put(build.effectiveKey(), 0L);
+            }
+            String key = build.effectiveKey();
+            try {
+                long queueId = schedule(build, key);
+                if (queueId == 0) {
+                    synchronized (this) {
+                        inFlight.remove(key);
+                        if (stopped != null) {
+                            break;
+                        }
+                        pending.addFirst(build);
+                        if (retry == null) {
+                            retry = this::fill;
+                        }
+                    }
+                    BuildTriggerThrottle.waitFor(retry);
+                    break;
+                }
+                Throwable cause;
+                synchronized (this) {
+                    if (inFlight.containsKey(key)) { // else already finished
+                        inFlight.put(key, queueId);
+                    }
+                    cause = stopped;
+                }
+                if (cause != null) {
+                    // stopped while we were scheduling it, so stop left it to us
+                    cancel(key, queueId, cause);
+                }
+            } catch (Exception x) {
+                LOGGER.log(Level.FINE, "could not schedule " + key, x);
+                record(key, null, x);
+            }
+        }
+        maybeFinish();
+    }
+
+    /**
+     * Schedules one build.
+     * @return its queue item ID, or 0 if {@link BuildTriggerThrottle} is holding it back
+     */
+    private long schedule(DownstreamBuild build, String key) throws Exception {
+        // may be called from a Timer thread, so act as the build would
+        try (ACLContext ctx = ACL.as(node.getExecution().getAuthentication())) {
+            Item item = Jenkins.getActiveInstance().getItem(build.getJob(), invokingRun.getParent(), Item.class);
+            if (item == null) {
+                throw new AbortException("No item named " + build.getJob() + " found");
+            }
+            item.checkPermission(Item.BUILD);
+            if (!(item instanceof Job)) {
+                throw new AbortException("Waiting for non-job items is not supported");
+            }
+            String job = item.getFullName();
+            String upstream = invokingRun.getExternalizableId();
+            String why = BuildTriggerThrottle.tryAdmit(job, upstream);
+            synchronized (this) {
+                if (why != null && admission == null) {
+                    listener.getLogger().println("Waiting to trigger " + job + ": " + why);
+                }
+                admission = why;
+            }
+            if (why != null) {
+                return 0;
+            }
+            List<Action> actions = new ArrayList<>();
+            actions.add(new CauseAction(new Cause.UpstreamCause(invokingRun)));
+            actions.add(new BuildUpstreamNodeAction(node, invokingRun));
+            actions.add(new BuildTriggerAction(getContext(), invokingRun, node, build.isPropagate(), key, false));
+            Queue.Item queueItem = null;
+            try {
+                queueItem = BuildTriggerStepExecution.scheduleBuild(item, actions, build.getParameters(), build.getQuietPeriod(), listener, null);
+            } finally {
+                if (queueItem == null) {
+                    BuildTriggerThrottle.unreserve(job, upstream);
+                }
+            }
+            if (queueItem == null) {
+                throw new AbortException("Failed to trigger build of " + job);
+            }
+            BuildTriggerThrottle.scheduled(job, upstream, queueItem);
+            DownstreamBuildAction.queued(node, job, queueItem.getId());
+            return queueItem.getId();
+        }
+    }
+
+    /** As in {@link BuildTriggerAction.Trigger#id}; null until context parameters have been injected. */
+    @CheckForNull String upstreamId() {
+        return invokingRun != null && node != null ? BuildTriggerAction.Trigger.idOf(invokingRun, node) : null;
+    }
+
+    /** Called by {@link BuildTriggerRegistry} when one downstream build starts. */
+    synchronized void started(@Nonnull String key, @Nonnull Run<?,?> run) {
+        runIds.put(key, run.getExternalizableId());
+    }
+
+    /** Called by {@link BuildTriggerRegistry} when one downstream build is done, for better or worse. */
+    void done(@Nonnull String key, @CheckForNull Object result, @CheckForNull Throwable failure) {
+        if (record(key, result, failure)) {
+            Timer.get().submit(() -> fill());
+        }
+    }
+
+    private synchronized boolean record(String key, @CheckForNull Object result, @CheckForNull Throwable failure) {
+        if (inFlight.remove(key) == null) {
+            LOGGER.log(Level.FINE, "ignoring duplicate outcome of {0}", key);
+            return false;
+        }
+        if (failure != null) {
+            failures.put(key, failure);
+        } else {
+            results.put(key, (RunWrapper) result);
+        }
+        return true;
+    }
+
+    private void maybeFinish() {
+        Throwable failure = null;
+        Map<String,RunWrapper> outcome = null;
+        synchronized (this) {
+            if (finished || !inFlight.isEmpty() || (stopped == null && !pending.isEmpty())) {
+                return;
+            }
+            finished = true;
+            if (stopped != null) {
+                failure = stopped;
+            } else if (!failures.isEmpty()) {
+                failure = combinedFailure(failures, keys.size());
+            } else {
+                outcome = new LinkedHashMap<>();
+                for (String key : keys) {
+                    outcome.put(key, results.get(key));
+                }
+            }
+        }
+        BuildTriggerRegistry.unregisterBatch(getContext());
+        if (failure != null) {
+            getContext().onFailure(failure);
+        } else {
+            getContext().onSuccess(outcome);
+        }
+    }
+
+    /**
+     * Summarizes the failures of several downstream builds.
+     * @param failures failures by some description of the build
+     * @param total number of builds, including successful ones
+     */
+    static Throwable combinedFailure(Map<String,Throwable> failures, int total) {
+        if (failures.size() == 1) {
+            return failures.values().iterator().next();
+        }
+        Result result = null;
+        List<CauseOfInterruption> causes = new ArrayList<>();
+        boolean allDownstream = true;
+        for (Throwable t : failures.values()) {
+            if (t instanceof FlowInterruptedException) {
+                FlowInterruptedException fie = (FlowInterruptedException) t;
+                result = result == null ? fie.getResult() : result.combine(fie.getResult());
+                causes.addAll(fie.getCauses());
+            } else {
+                allDownstream = false;
+            }
+        }
+        if (allDownstream) {
+            return new FlowInterruptedException(result, causes.toArray(new CauseOfInterruption[causes.size()]));
+        }
+        AbortException x = new AbortException(failures.size() + " of " + total + " downstream builds failed: " + failures.keySet());
+        for (Throwable t : failures.values()) {
+            x.addSuppressed(t);
+        }
+        return x;
+    }
+
+    @Override
+    public void stop(Throwable cause) throws Exception {
+        Map<String,Long> scheduled;
+        synchronized (this) {
+            stopped = cause;
+            pending.clear();
+            scheduled = new HashMap<>(inFlight);
+            if (retry != null) {
+                BuildTriggerThrottle.cancelWait(retry);
+            }
+        }
+        for (Map.Entry<String,Long> e : scheduled.entrySet()) {
+            if (e.getValue() != 0) {
+                cancel(e.getKey(), e.getValue(), cause);
+            } // else being scheduled right now, and fill will cancel it once it has a queue item
+        }
+        maybeFinish();
+    }
+
+    /** Asks for one downstream queue item or build to be cancelled; the outcome will then come back through {@link #done}. */
+    private void cancel(String key, long queueId, Throwable cause) {
+        Runnable missed = () -> {
+            synchronized (this) {
+                inFlight.remove(key);
+            }
+            maybeFinish();
+        };
+        BuildTriggerRegistry.Entry entry = BuildTriggerRegistry.forQueueId(queueId);
+        Run<?,?> run = entry != null ? entry.run : null;
+        Executor executor = entry != null ? entry.executor : null;
+        if (run == null) {
+            String id;
+            synchronized (this) {
+                id = runIds.get(key);
+            }
+            if (id != null) {
+                run = Run.fromExternalizableId(id);
+            }
+        }
+        String upstream = invokingRun != null ? invokingRun.getExternalizableId() : getContext().toString();
+        BuildTriggerCancellation.cancel(upstream, new BuildTriggerCancellation.Request(getContext(), upstreamId(), key, cause, queueId, run, executor, missed));
+    }
+
+    @Override public synchronized String getStatus() {
+        String status = (results.size() + failures.size()) + " of " + keys.size() + " downstream builds finished; in flight: " + inFlight.keySet();
+        if (admission != null && !pending.isEmpty()) {
+            status += "; waiting to trigger " + pending.getFirst().getJob() + ": " + admission;
+        }
+        return status;
+    }
+
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+    }
+
+    private static final long serialVersionUID = 1L;
+
+}
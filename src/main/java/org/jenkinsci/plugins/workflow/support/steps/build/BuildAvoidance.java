@@ -0,0 +1,179 @@
+package org.jenkinsci.plugins.workflow.support.steps.build;
+
+import hudson.Util;
+import hudson.model.BooleanParameterValue;
+import hudson.model.Job;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.StringParameterValue;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.util.SystemProperties;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Finds builds which may stand in for a new one with the same parameters, for {@link BuildTriggerStep#getReuseWithin}.
+ * Builds are identified by a fingerprint of the job and its parameter values;
+ * running builds are tracked until they complete, and successful ones are then remembered for a while,
+ * up to {@link #MAX_RECENT} fingerprints, least recently used first out.
+ * Only builds of jobs which some step has asked about are tracked, starting from when it first asked.
+ * Identical builds still in the queue need no tracking, since the queue already coalesces them.
+ * Kept in memory only.
+ */
+final class BuildAvoidance {
+
+    @Restricted(NoExternalUse.class)
+    static /* not final */ int MAX_RECENT = SystemProperties.getInteger(BuildAvoidance.class.getName() + ".maxRecent", 1000);
+
+    /** A successful build, and when it completed. */
+    private static final class Recent {
+
+        final String runId;
+        final long completed;
+
+        Recent(String runId, long completed) {
+            this.runId = runId;
+            this.completed = completed;
+        }
+
+    }
+
+    /** Full names of jobs whose builds are tracked, as {@linkplain #watch requested} by steps. */
+    private static final Set<String> watched = ConcurrentHashMap.newKeySet();
+
+    /** Guards {@link #recent} and {@link #running}. */
+    private static final Object LOCK = new Object();
+
+    private static final Map<String,Recent> recent = new LinkedHashMap<String,Recent>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<String,Recent> eldest) {
+            return size() > MAX_RECENT;
+        }
+    };
+
+    /** {@link Run#getExternalizableId} of running builds, by fingerprint. */
+    private static final Map<String,String> running = new HashMap<>();
+
+    private BuildAvoidance() {}
+
+    /** Starts tracking builds of a job, so that later steps may reuse them. */
+    static void watch(@Nonnull Job<?,?> job) {
+        watched.add(job.getFullName());
+    }
+
+    /**
+     * Computes the fingerprint of a build of a job with given parameters.
+     * @return null unless all the values are of types which can be compared reliably
+     */
+    static @CheckForNull String fingerprint(@Nonnull Job<?,?> job, @Nonnull Iterable<? extends ParameterValue> parameters) {
+        List<String> values = new ArrayList<>();
+        for (ParameterValue pv : parameters) {
+            // StringParameterValue covers text and choice parameters too; other values, such as files, may not say what they hold
+            if (!(pv instanceof StringParameterValue) && !(pv instanceof BooleanParameterValue)) {
+                return null;
+            }
+            values.add(pv.getClass().getName() + ':' + pv.getName() + '=' + pv.getValue());
+        }
+        Collections.sort(values);
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            update(digest, job.getFullName());
+            for (String value : values) {
+                update(digest, value);
+            }
+            return Util.toHexString(digest.digest());
+        } catch (NoSuchAlgorithmException x) {
+            throw new AssertionError(x);
+        }
+    }
+
+    private static void update(MessageDigest digest, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        // length-prefixed, so that values cannot run into one another
+        digest.update(Integer.toString(bytes.length).getBytes(StandardCharsets.US_ASCII));
+        digest.update((byte) ':');
+        digest.update(bytes);
+    }
+
+    static @CheckForNull String fingerprint(@Nonnull Run<?,?> run) {
+        ParametersAction action = run.getAction(ParametersAction.class);
+        return fingerprint(run.getParent(), action != null ? action.getParameters() : Collections.<ParameterValue>emptyList());
+    }
+
+    /**
+     * Finds a build with a given fingerprint which is running now, or which succeeded recently enough.
+     * @param within how old a completed build may be, in milliseconds
+     */
+    static @CheckForNull Run<?,?> find(@Nonnull String fingerprint, long within) {
+        String runId;
+        synchronized (LOCK) {
+            runId = running.get(fingerprint);
+            if (runId == null) {
+                Recent r = recent.get(fingerprint);
+                if (r == null || System.currentTimeMillis() - r.completed > within) {
+                    return null;
+                }
+                runId = r.runId;
+            }
+        }
+        Run<?,?> run = Run.fromExternalizableId(runId);
+        return run != null && (run.isBuilding() || run.getResult() == Result.SUCCESS) ? run : null;
+    }
+
+    /**
+     * Adds a trigger to a running build, unless it has completed meanwhile.
+     * @return true if the trigger will be told when the build completes
+     */
+    static boolean attach(@Nonnull String fingerprint, @Nonnull Run<?,?> run, @Nonnull BuildTriggerAction.Trigger trigger) {
+        synchronized (LOCK) {
+            if (!run.getExternalizableId().equals(running.get(fingerprint))) {
+                return false;
+            }
+            // BuildTriggerListener.onCompleted calls completed before looking for triggers, so this one cannot be missed
+            BuildTriggerAction.attach(run, trigger);
+            BuildTriggerPersistence.saveLater(run);
+            return true;
+        }
+    }
+
+    static void started(@Nonnull Run<?,?> run) {
+        if (!watched.contains(run.getParent().getFullName())) {
+            return;
+        }
+        String fingerprint = fingerprint(run);
+        if (fingerprint != null) {
+            synchronized (LOCK) {
+                running.put(fingerprint, run.getExternalizableId());
+            }
+        }
+    }
+
+    static void completed(@Nonnull Run<?,?> run) {
+        if (!watched.contains(run.getParent().getFullName())) {
+            return;
+        }
+        String fingerprint = fingerprint(run);
+        if (fingerprint != null) {
+            synchronized (LOCK) {
+                running.remove(fingerprint, run.getExternalizableId());
+                if (run.getResult() == Result.SUCCESS) {
+                    recent.put(fingerprint, new Recent(run.getExternalizableId(), System.currentTimeMillis()));
+                }
+            }
+        }
+    }
+
+}
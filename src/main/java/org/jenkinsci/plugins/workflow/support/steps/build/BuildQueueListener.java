@@ -3,6 +3,7 @@ package org.jenkinsci.plugins.workflow.support.steps.build;
 import hudson.AbortException;
 import hudson.Extension;
 import hudson.model.Queue;
+import hudson.model.Job;
 import hudson.model.queue.QueueListener;
 
 /**
@@ -10,12 +11,28 @@ import hudson.model.queue.QueueListener;
  */
 @Extension
 public class BuildQueueListener extends QueueListener {
+    @Override
+    public void onEnterWaiting(Queue.WaitingItem wi) {
+        BuildTriggerRegistry.queued(wi.getId(), BuildTriggerAction.triggersFor(wi));
+    }
+
     @Override
     public void onLeft(Queue.LeftItem li) {
+        // a downstream task which is not a Job never completes as far as BuildTriggerListener is concerned;
+        // judged by the task, since the executable has not yet been created when the item leaves the queue
+        BuildTriggerThrottle.left(li.getId(), li.isCancelled() || !(li.task instanceof Job));
+        String job = BuildTriggerMetrics.nameOf(li.task);
+        if (li.getAction(BuildUpstreamNodeAction.class) != null) {
+            BuildTriggerMetrics.left(job, System.currentTimeMillis() - li.getInQueueSince(), li.isCancelled());
+            BuildTraceExporter.left(li);
+        }
         if(li.isCancelled()){
-            for (BuildTriggerAction.Trigger trigger : BuildTriggerAction.triggersFor(li)) {
-                trigger.context.onFailure(new AbortException("Build of " + li.task.getFullDisplayName() + " was cancelled"));
+            Iterable<BuildTriggerAction.Trigger> triggers = BuildTriggerAction.triggersFor(li);
+            BuildTriggerRegistry.done(li.getId(), triggers);
+            for (BuildTriggerAction.Trigger trigger : triggers) {
+                BuildTriggerDispatcher.failure(trigger, new AbortException("Build of " + li.task.getFullDisplayName() + " was cancelled"), job);
             }
+            BuildTriggerRegistry.cancelled(li);
         }
     }
 
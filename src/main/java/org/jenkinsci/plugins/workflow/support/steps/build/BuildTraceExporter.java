@@ -0,0 +1,202 @@
+package org.jenkinsci.plugins.workflow.support.steps.build;
+
+import hudson.Util;
+import hudson.model.Queue;
+import hudson.model.Result;
+import hudson.model.Run;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Optionally writes a span for each hop from an upstream build step to a downstream build,
+ * in the <a href="https://zipkin.io/zipkin-api/#/default/post_spans">Zipkin v2</a> JSON format, one span per line,
+ * to {@code $JENKINS_HOME/logs/build-step-traces/traces.json}, rotating old files to {@code traces.json.1} and so on.
+ * Each hop runs from entering the queue to completion; its parent is the hop which triggered the upstream build, if any,
+ * and all hops below one top-level build share a trace ID, so multi-level chains can be loaded into a trace viewer as a whole.
+ */
+final class BuildTraceExporter {
+
+    private static final Logger LOGGER = Logger.getLogger(BuildTraceExporter.class.getName());
+
+    @Restricted(NoExternalUse.class)
+    static /* not final */ boolean ENABLED = SystemProperties.getBoolean(BuildTraceExporter.class.getName() + ".enabled");
+
+    /** Size at which the file is rotated. */
+    @Restricted(NoExternalUse.class)
+    static /* not final */ long MAX_BYTES = SystemProperties.getLong(BuildTraceExporter.class.getName() + ".maxBytes", 10L * 1024 * 1024);
+
+    /** Number of rotated files to keep. */
+    @Restricted(NoExternalUse.class)
+    static /* not final */ int MAX_FILES = SystemProperties.getInteger(BuildTraceExporter.class.getName() + ".maxFiles", 5);
+
+    /** Upstream builds are followed at most this far to find the top of a chain. */
+    private static final int MAX_DEPTH = 100;
+
+    /** When downstream queue items entered the queue, by ID, until their builds complete. */
+    private static final Map<Long,Long> enqueued = new ConcurrentHashMap<>();
+
+    private BuildTraceExporter() {}
+
+    /** Called when an item carrying a {@link BuildUpstreamNodeAction} leaves the queue. */
+    static void left(@Nonnull Queue.LeftItem li) {
+        if (!ENABLED) {
+            return;
+        }
+        if (!li.isCancelled()) {
+            enqueued.put(li.getId(), li.getInQueueSince());
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (BuildUpstreamNodeAction action : li.getActions(BuildUpstreamNodeAction.class)) {
+            JSONObject span = span(BuildTriggerMetrics.nameOf(li.task), "queue:" + li.getId(), action, li.getInQueueSince(), now);
+            span.getJSONObject("tags").put("queue.id", String.valueOf(li.getId()));
+            span.getJSONObject("tags").put("error", "cancelled");
+            write(span, action.getUpstreamRunId());
+        }
+    }
+
+    /** Called when a build carrying a {@link BuildUpstreamNodeAction} completes. */
+    static void completed(@Nonnull Run<?,?> run) {
+        Long queued = enqueued.remove(run.getQueueId());
+        if (!ENABLED) {
+            return;
+        }
+        long start = run.getStartTimeInMillis();
+        long now = System.currentTimeMillis();
+        for (BuildUpstreamNodeAction action : run.getActions(BuildUpstreamNodeAction.class)) {
+            JSONObject span = span(run.getParent().getFullName(), run.getExternalizableId(), action, queued != null ? queued : start, now);
+            JSONObject tags = span.getJSONObject("tags");
+            tags.put("queue.id", String.valueOf(run.getQueueId()));
+            tags.put("downstream.run", run.getExternalizableId());
+            Result result = run.getResult();
+            tags.put("result", String.valueOf(result));
+            if (result != null && result.isWorseThan(Result.SUCCESS)) {
+                tags.put("error", result.toString());
+            }
+            JSONObject started = new JSONObject();
+            started.put("timestamp", start * 1000);
+            started.put("value", "started");
+            JSONArray annotations = new JSONArray();
+            annotations.add(started);
+            span.put("annotations", annotations);
+            write(span, action.getUpstreamRunId());
+        }
+    }
+
+    /** Starts a span; its trace and parent are filled in by {@link #write}. */
+    private static JSONObject span(String job, String downstream, BuildUpstreamNodeAction action, long begin, long end) {
+        JSONObject span = new JSONObject();
+        span.put("id", hopId(downstream, action));
+        span.put("name", job);
+        span.put("timestamp", begin * 1000);
+        span.put("duration", Math.max(1, (end - begin) * 1000));
+        JSONObject endpoint = new JSONObject();
+        endpoint.put("serviceName", "jenkins");
+        span.put("localEndpoint", endpoint);
+        JSONObject tags = new JSONObject();
+        tags.put("upstream.run", action.getUpstreamRunId());
+        tags.put("upstream.node", action.getUpstreamNodeId());
+        span.put("tags", tags);
+        return span;
+    }
+
+    /** 64-bit span ID for one hop into a downstream build (or queue item). */
+    private static String hopId(String downstream, BuildUpstreamNodeAction action) {
+        return Util.getDigestOf(downstream + "@" + action.getUpstreamRunId() + "#" + action.getUpstreamNodeId()).substring(0, 16);
+    }
+
+    /** The span of the hop which triggered an upstream build, if it was triggered by a build step. */
+    private static @CheckForNull String parentId(String upstreamRunId) {
+        Run<?,?> upstream = Run.fromExternalizableId(upstreamRunId);
+        BuildUpstreamNodeAction action = upstream != null ? upstream.getAction(BuildUpstreamNodeAction.class) : null;
+        return action != null ? hopId(upstreamRunId, action) : null;
+    }
+
+    /** 128-bit trace ID derived from the top-level build of a chain. */
+    private static String traceId(String upstreamRunId) {
+        String root = upstreamRunId;
+        for (int depth = 0; depth < MAX_DEPTH; depth++) {
+            Run<?,?> run = Run.fromExternalizableId(root);
+            BuildUpstreamNodeAction action = run != null ? run.getAction(BuildUpstreamNodeAction.class) : null;
+            if (action == null) {
+                break;
+            }
+            root = action.getUpstreamRunId();
+        }
+        return Util.getDigestOf(root);
+    }
+
+    /**
+     * Finishes and writes a span on a {@link Timer} thread, since following the chain of upstream builds may load them from disk.
+     * @param upstreamRunId as in {@link BuildUpstreamNodeAction#getUpstreamRunId}
+     */
+    private static void write(final JSONObject span, final String upstreamRunId) {
+        Timer.get().submit(new Runnable() {
+            @Override public void run() {
+                try {
+                    span.put("traceId", traceId(upstreamRunId));
+                    String parentId = parentId(upstreamRunId);
+                    if (parentId != null) {
+                        span.put("parentId", parentId);
+                    }
+                    append(span.toString());
+                } catch (IOException x) {
+                    LOGGER.log(Level.WARNING, "failed to write trace span", x);
+                }
+            }
+        });
+    }
+
+    private static synchronized void append(String line) throws IOException {
+        File dir = new File(Jenkins.getActiveInstance().getRootDir(), "logs/build-step-traces");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("could not create " + dir);
+        }
+        File file = new File(dir, "traces.json");
+        if (file.length() >= MAX_BYTES) {
+            rotate(dir, file);
+        }
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8)) {
+            w.write(line);
+            w.write('\n');
+        }
+    }
+
+    private static void rotate(File dir, File file) throws IOException {
+        File oldest = new File(dir, file.getName() + "." + MAX_FILES);
+        if (oldest.exists() && !oldest.delete()) {
+            throw new IOException("could not delete " + oldest);
+        }
+        for (int i = MAX_FILES - 1; i >= 1; i--) {
+            File f = new File(dir, file.getName() + "." + i);
+            if (f.exists() && !f.renameTo(new File(dir, file.getName() + "." + (i + 1)))) {
+                throw new IOException("could not rotate " + f);
+            }
+        }
+        if (MAX_FILES > 0) {
+            if (!file.renameTo(new File(dir, file.getName() + ".1"))) {
+                throw new IOException("could not rotate " + file);
+            }
+        } else if (!file.delete()) {
+            throw new IOException("could not delete " + file);
+        }
+    }
+
+}
@@ -1,18 +1,33 @@
 package org.jenkinsci.plugins.workflow.support.steps.build;
 
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.core.util.HierarchicalStreams;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.mapper.Mapper;
 import hudson.model.Action;
 import hudson.model.Actionable;
 import hudson.model.InvisibleAction;
 import hudson.model.Queue;
+import hudson.model.Run;
 import hudson.model.queue.FoldableAction;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import org.jenkinsci.plugins.workflow.flow.FlowExecutionOwner;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
 import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
 
-@SuppressWarnings("SynchronizeOnNonFinalField")
 class BuildTriggerAction extends InvisibleAction implements FoldableAction {
 
     private static final Logger LOGGER = Logger.getLogger(BuildTriggerAction.class.getName());
@@ -23,48 +38,364 @@ class BuildTriggerAction extends InvisibleAction implements FoldableAction {
     @Deprecated
     private Boolean propagate;
 
-    /** Record of one upstream build step. */
+    /**
+     * Record of one upstream build step.
+     * Saved with queue items and builds in a compact form, by {@link ConverterImpl}:
+     * the upstream build and flow node, rather than the whole {@link StepContext},
+     * which is looked up again only when the outcome is delivered.
+     */
     static class Trigger {
 
-        final StepContext context;
+        /** The context, if created in this session or already looked up. */
+        private volatile @CheckForNull StepContext context;
+
+        /** {@link Run#getExternalizableId} of the upstream build; null only for records loaded from old versions, which keep {@link #context}. */
+        final @CheckForNull String upstreamRunId;
+
+        /** {@link FlowNode#getId} of the step in the upstream build; null when {@link #upstreamRunId} is. */
+        final @CheckForNull String upstreamNodeId;
 
         final boolean propagate;
 
+        /** Identifies this downstream build within a {@link BuildAllStepExecution}; null for a plain {@code build} step. */
+        final @CheckForNull String key;
+
+        /** Whether to report success as soon as the downstream build starts, rather than when it completes. */
+        final boolean waitForStart;
+
         /** Record of cancellation cause passed to {@link BuildTriggerStepExecution#stop}, if any. */
-        @CheckForNull Throwable interruption;
+        volatile @CheckForNull Throwable interruption;
 
-        Trigger(StepContext context, boolean propagate) {
+        Trigger(StepContext context, boolean propagate, @CheckForNull String key, boolean waitForStart) {
+            this(context, null, null, propagate, key, waitForStart);
+        }
+
+        Trigger(StepContext context, @CheckForNull String upstreamRunId, @CheckForNull String upstreamNodeId, boolean propagate, @CheckForNull String key, boolean waitForStart) {
             this.context = context;
+            this.upstreamRunId = upstreamRunId;
+            this.upstreamNodeId = upstreamNodeId;
             this.propagate = propagate;
+            this.key = key;
+            this.waitForStart = waitForStart;
+        }
+
+        /**
+         * Identifies the upstream step without looking up its context.
+         * @return as in {@link #idOf}, or the context itself for records without IDs
+         */
+        Object id() {
+            return upstreamRunId != null ? idOf(upstreamRunId, upstreamNodeId) : context;
+        }
+
+        static String idOf(@Nonnull Run<?,?> upstream, @Nonnull FlowNode node) {
+            return idOf(upstream.getExternalizableId(), node.getId());
+        }
+
+        private static String idOf(String upstreamRunId, String upstreamNodeId) {
+            return upstreamRunId + ' ' + upstreamNodeId;
+        }
+
+        /**
+         * Gets the context without blocking, as under the queue lock.
+         * @return the context, or null if it has not been looked up since a restart and its step execution has not yet resumed
+         */
+        @CheckForNull StepContext contextIfKnown() {
+            StepContext c = context;
+            if (c == null && upstreamRunId != null) {
+                c = BuildTriggerRegistry.contextOf(idOf(upstreamRunId, upstreamNodeId));
+                if (c != null) {
+                    context = c;
+                }
+            }
+            return c;
+        }
+
+        /**
+         * Gets the context, loading the upstream build and waiting for its step executions if need be.
+         * Must not be called under the queue lock, since the executions are listed on the CPS VM thread.
+         * @return the context, or null if the step is no longer running
+         */
+        @CheckForNull StepContext context() {
+            StepContext c = contextIfKnown();
+            if (c != null) {
+                return c;
+            }
+            c = lookUp();
+            if (c != null) {
+                context = c;
+            }
+            return c;
+        }
+
+        private @CheckForNull StepContext lookUp() {
+            if (upstreamRunId == null) {
+                return null;
+            }
+            Run<?,?> upstream = Run.fromExternalizableId(upstreamRunId);
+            if (!(upstream instanceof FlowExecutionOwner.Executable)) {
+                return null;
+            }
+            try {
+                FlowExecutionOwner owner = ((FlowExecutionOwner.Executable) upstream).asFlowExecutionOwner();
+                if (owner == null) {
+                    return null;
+                }
+                for (StepExecution execution : owner.get().getCurrentExecutions(false).get()) {
+                    StepContext c = execution.getContext();
+                    FlowNode node = c.get(FlowNode.class);
+                    if (node != null && node.getId().equals(upstreamNodeId)) {
+                        return c;
+                    }
+                }
+            } catch (IOException | ExecutionException x) {
+                LOGGER.log(Level.WARNING, "could not look up " + this, x);
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        }
+
+        /** Reports the outcome of the downstream build to whoever is waiting for it. */
+        void onSuccess(Object result) {
+            StepContext c = context();
+            if (c == null) {
+                LOGGER.log(Level.FINE, "{0} is no longer waiting", this);
+            } else if (key == null) {
+                c.onSuccess(result);
+            } else {
+                BuildTriggerRegistry.batchDone(c, key, result, null);
+            }
+        }
+
+        /** @see #onSuccess */
+        void onFailure(Throwable t) {
+            StepContext c = context();
+            if (c == null) {
+                LOGGER.log(Level.FINE, "{0} is no longer waiting", this);
+            } else if (key == null) {
+                c.onFailure(t);
+            } else {
+                BuildTriggerRegistry.batchDone(c, key, null, t);
+            }
+        }
+
+        @Override public String toString() {
+            String where = upstreamRunId != null ? upstreamRunId + " node " + upstreamNodeId : String.valueOf(context);
+            return key != null ? where + " [" + key + "]" : where;
+        }
+
+        /**
+         * Writes {@code <…Trigger v="1" upstream="…" node="…" flags="…" key="…"/>},
+         * with a nested {@code interruption} if any;
+         * reads that as well as the old form, which had a serialized {@code context} and a child element per field.
+         */
+        public static final class ConverterImpl implements Converter {
+
+            /** Version of the compact form. */
+            private static final int VERSION = 1;
+
+            private static final int PROPAGATE = 1;
+            private static final int WAIT_FOR_START = 2;
+
+            private final Mapper mapper;
+
+            public ConverterImpl(Mapper mapper) {
+                this.mapper = mapper;
+            }
+
+            @SuppressWarnings("rawtypes")
+            @Override public boolean canConvert(Class type) {
+                return type == Trigger.class;
+            }
+
+            @Override public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
+                Trigger trigger = (Trigger) source;
+                if (trigger.upstreamRunId == null) {
+                    // loaded from an old version and never looked up again; keep the old form
+                    write(writer, context, "context", trigger.context);
+                    writer.startNode("propagate");
+                    writer.setValue(Boolean.toString(trigger.propagate));
+                    writer.endNode();
+                    if (trigger.key != null) {
+                        writer.startNode("key");
+                        writer.setValue(trigger.key);
+                        writer.endNode();
+                    }
+                    writer.startNode("waitForStart");
+                    writer.setValue(Boolean.toString(trigger.waitForStart));
+                    writer.endNode();
+                } else {
+                    writer.addAttribute("v", Integer.toString(VERSION));
+                    writer.addAttribute("upstream", trigger.upstreamRunId);
+                    writer.addAttribute("node", trigger.upstreamNodeId);
+                    writer.addAttribute("flags", Integer.toString((trigger.propagate ? PROPAGATE : 0) | (trigger.waitForStart ? WAIT_FOR_START : 0)));
+                    if (trigger.key != null) {
+                        writer.addAttribute("key", trigger.key);
+                    }
+                }
+                write(writer, context, "interruption", trigger.interruption);
+            }
+
+            private void write(HierarchicalStreamWriter writer, MarshallingContext context, String name, @CheckForNull Object value) {
+                if (value != null) {
+                    writer.startNode(name);
+                    writer.addAttribute(mapper.aliasForSystemAttribute("class"), mapper.serializedClass(value.getClass()));
+                    context.convertAnother(value);
+                    writer.endNode();
+                }
+            }
+
+            @Override public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+                // later versions may add attributes, but must keep these
+                String version = reader.getAttribute("v");
+                StepContext stepContext = null;
+                String upstreamRunId = null;
+                String upstreamNodeId = null;
+                boolean propagate = true;
+                String key = null;
+                boolean waitForStart = false;
+                if (version != null) {
+                    upstreamRunId = reader.getAttribute("upstream");
+                    upstreamNodeId = reader.getAttribute("node");
+                    int flags = Integer.parseInt(reader.getAttribute("flags"));
+                    propagate = (flags & PROPAGATE) != 0;
+                    waitForStart = (flags & WAIT_FOR_START) != 0;
+                    key = reader.getAttribute("key");
+                }
+                Throwable interruption = null;
+                while (reader.hasMoreChildren()) {
+                    reader.moveDown();
+                    switch (reader.getNodeName()) {
+                    case "context":
+                        stepContext = (StepContext) context.convertAnother(null, HierarchicalStreams.readClassType(reader, mapper));
+                        break;
+                    case "propagate":
+                        propagate = Boolean.parseBoolean(reader.getValue());
+                        break;
+                    case "key":
+                        key = reader.getValue();
+                        break;
+                    case "waitForStart":
+                        waitForStart = Boolean.parseBoolean(reader.getValue());
+                        break;
+                    case "interruption":
+                        interruption = (Throwable) context.convertAnother(null, HierarchicalStreams.readClassType(reader, mapper));
+                        break;
+                    default:
+                        LOGGER.log(Level.FINE, "ignoring {0} in a build trigger", reader.getNodeName());
+                    }
+                    reader.moveUp();
+                }
+                Trigger trigger = new Trigger(stepContext, upstreamRunId, upstreamNodeId, propagate, key, waitForStart);
+                trigger.interruption = interruption;
+                return trigger;
+            }
+
         }
 
     }
 
-    private /* final */ List<Trigger> triggers;
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<BuildTriggerAction,List> TRIGGERS = AtomicReferenceFieldUpdater.newUpdater(BuildTriggerAction.class, List.class, "triggers");
+
+    /** Never modified once published; {@link #foldIntoExisting} swaps in a copy, so readers need no lock. */
+    private volatile List<Trigger> triggers;
 
     BuildTriggerAction(StepContext context, boolean propagate) {
-        triggers = new ArrayList<>();
-        triggers.add(new Trigger(context, propagate));
+        this(new Trigger(context, propagate, null, false));
+    }
+
+    BuildTriggerAction(StepContext context, @Nonnull Run<?,?> upstream, @Nonnull FlowNode node, boolean propagate, @CheckForNull String key, boolean waitForStart) {
+        this(new Trigger(context, upstream.getExternalizableId(), node.getId(), propagate, key, waitForStart));
+    }
+
+    BuildTriggerAction(Trigger trigger) {
+        List<Trigger> _triggers = new ArrayList<>(1);
+        _triggers.add(trigger);
+        triggers = _triggers;
     }
 
     private Object readResolve() {
         if (triggers == null) {
-            triggers = new ArrayList<>();
-            triggers.add(new Trigger(context, propagate != null ? propagate : /* old serialized record */ true));
+            List<Trigger> _triggers = new ArrayList<>(1);
+            _triggers.add(new Trigger(context, propagate != null ? propagate : /* old serialized record */ true, null, false));
+            triggers = _triggers;
             context = null;
             propagate = null;
         }
         return this;
     }
 
+    /**
+     * Finds the triggers recorded on a queue item or build.
+     * Allocates nothing unless there is more than one {@link BuildTriggerAction}, which {@link #foldIntoExisting} avoids.
+     * @return a snapshot which must not be modified
+     */
+    @SuppressWarnings("deprecation") // only ever added as a persistent action, and getAllActions would copy
     static Iterable<Trigger> triggersFor(Actionable actionable) {
-        List<Trigger> triggers = new ArrayList<>();
-        for (BuildTriggerAction action : actionable.getActions(BuildTriggerAction.class)) {
-            synchronized (action.triggers) {
-                triggers.addAll(action.triggers);
+        List<Trigger> found = null;
+        List<Trigger> merged = null;
+        for (Action a : actionable.getActions()) {
+            if (a instanceof BuildTriggerAction) {
+                List<Trigger> triggers = ((BuildTriggerAction) a).triggers;
+                if (found == null) {
+                    found = triggers;
+                } else {
+                    if (merged == null) {
+                        merged = new ArrayList<>(found);
+                        found = merged;
+                    }
+                    merged.addAll(triggers);
+                }
+            }
+        }
+        return found != null ? found : Collections.<Trigger>emptyList();
+    }
+
+    /** Removes a trigger which has already been answered, so that it is not answered again when the build completes. */
+    @SuppressWarnings("deprecation") // as in triggersFor
+    static void remove(Actionable actionable, Trigger trigger) {
+        for (Action a : actionable.getActions()) {
+            if (a instanceof BuildTriggerAction) {
+                ((BuildTriggerAction) a).remove(trigger);
+            }
+        }
+    }
+
+    /** Adds a trigger to a build which is already running, folding it into any existing action as {@link #foldIntoExisting} would. */
+    static void attach(Run<?,?> run, Trigger trigger) {
+        BuildTriggerAction existing = run.getAction(BuildTriggerAction.class);
+        if (existing == null) {
+            run.addAction(new BuildTriggerAction(trigger));
+        } else {
+            existing.addAll(Collections.singletonList(trigger));
+        }
+    }
+
+    private void remove(Trigger trigger) {
+        while (true) {
+            List<Trigger> current = triggers;
+            if (!current.contains(trigger)) {
+                return;
+            }
+            List<Trigger> updated = new ArrayList<>(current);
+            updated.remove(trigger);
+            if (TRIGGERS.compareAndSet(this, current, updated)) {
+                return;
+            }
+        }
+    }
+
+    private void addAll(List<Trigger> added) {
+        while (true) {
+            List<Trigger> current = triggers;
+            List<Trigger> updated = new ArrayList<>(current.size() + added.size());
+            updated.addAll(current);
+            updated.addAll(added);
+            if (TRIGGERS.compareAndSet(this, current, updated)) {
+                return;
             }
         }
-        return triggers;
     }
 
     @Override public void foldIntoExisting(Queue.Item item, Queue.Task owner, List<Action> otherActions) {
@@ -73,10 +404,9 @@ class BuildTriggerAction extends InvisibleAction implements FoldableAction {
         if (existing == null) {
             item.addAction(this);
         } else {
-            synchronized (existing.triggers) {
-                existing.triggers.addAll(triggers);
-            }
+            existing.addAll(triggers);
         }
+        BuildTriggerRegistry.queued(item.getId(), triggers);
         LOGGER.log(Level.FINE, "coalescing actions for {0}", item);
     }
 
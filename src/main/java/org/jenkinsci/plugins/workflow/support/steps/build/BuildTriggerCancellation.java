@@ -0,0 +1,249 @@
+package org.jenkinsci.plugins.workflow.support.steps.build;
+
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Queue;
+import hudson.model.Result;
+import hudson.model.Run;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Cancels the downstream builds of stopped steps in batches, one per upstream build.
+ * Aborting a Pipeline stops each of its waiting steps in turn; rather than each taking the queue lock,
+ * scanning executors, and saving its downstream build on the CPS VM thread, the steps leave a {@link Request} here,
+ * and shortly afterwards all requests of one upstream build are handled together on a {@link Timer} thread:
+ * queue items are cancelled under one lock, builds are interrupted, and each interrupted build is saved once, by {@link BuildTriggerPersistence}.
+ * As before, the failure of a step is then reported by {@link BuildQueueListener} or {@link BuildTriggerListener};
+ * a step whose downstream build could not be found is failed directly.
+ */
+final class BuildTriggerCancellation {
+
+    private static final Logger LOGGER = Logger.getLogger(BuildTriggerCancellation.class.getName());
+
+    /** How long to gather requests from one upstream build before handling them. */
+    @Restricted(NoExternalUse.class)
+    static /* not final */ long DELAY_MILLIS = SystemProperties.getLong(BuildTriggerCancellation.class.getName() + ".delayMillis", 100L);
+
+    /** What a stopped step wants cancelled. */
+    static final class Request {
+
+        final StepContext context;
+        /** As in {@link BuildTriggerAction.Trigger#id}, if known. */
+        final @CheckForNull String upstreamId;
+        /** As in {@link BuildTriggerAction.Trigger#key}. */
+        final @CheckForNull String key;
+        final Throwable cause;
+        /** The downstream queue item, or 0 if unknown, in which case the queue and executors are scanned. */
+        final long queueId;
+        @CheckForNull Run<?,?> run;
+        @CheckForNull Executor executor;
+        /** Called if nothing was found to cancel. */
+        final Runnable missed;
+
+        Request(@Nonnull StepContext context, @CheckForNull String upstreamId, @CheckForNull String key, @Nonnull Throwable cause, long queueId,
+                @CheckForNull Run<?,?> run, @CheckForNull Executor executor, @Nonnull Runnable missed) {
+            this.context = context;
+            this.upstreamId = upstreamId;
+            this.key = key;
+            this.cause = cause;
+            this.queueId = queueId;
+            this.run = run;
+            this.executor = executor;
+            this.missed = missed;
+        }
+
+        /** Indexes this request by what {@link BuildTriggerAction.Trigger#id} may return, whether the trigger is new or from an old version. */
+        void index(Map<List<Object>,Request> requests) {
+            requests.put(Arrays.<Object>asList(context, key), this);
+            if (upstreamId != null) {
+                requests.put(Arrays.<Object>asList(upstreamId, key), this);
+            }
+        }
+
+    }
+
+    /** Requests not yet handled, by {@link Run#getExternalizableId} of the upstream build; guarded by itself. */
+    private static final Map<String,List<Request>> pending = new HashMap<>();
+
+    private BuildTriggerCancellation() {}
+
+    /** Asks for a downstream queue item or build to be cancelled soon, along with any others of the same upstream build. */
+    static void cancel(@Nonnull String upstream, @Nonnull Request request) {
+        boolean first;
+        synchronized (pending) {
+            List<Request> requests = pending.get(upstream);
+            first = requests == null;
+            if (first) {
+                requests = new ArrayList<>();
+                pending.put(upstream, requests);
+            }
+            requests.add(request);
+        }
+        if (first) {
+            Timer.get().schedule(() -> flush(upstream), DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static void flush(String upstream) {
+        List<Request> requests;
+        synchronized (pending) {
+            requests = pending.remove(upstream);
+        }
+        if (requests == null) {
+            return;
+        }
+        Set<Request> found = Collections.newSetFromMap(new IdentityHashMap<Request,Boolean>());
+        try {
+            Jenkins jenkins = Jenkins.getInstanceOrNull();
+            if (jenkins != null) {
+                cancel(jenkins, requests, found);
+            }
+        } catch (RuntimeException x) {
+            LOGGER.log(Level.WARNING, "failed to cancel downstream builds of " + upstream, x);
+        } finally {
+            for (Request request : requests) {
+                if (!found.contains(request)) {
+                    try {
+                        request.missed.run();
+                    } catch (RuntimeException x) {
+                        LOGGER.log(Level.WARNING, null, x);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void cancel(Jenkins jenkins, List<Request> requests, Set<Request> found) {
+        List<Request> known = new ArrayList<>();
+        Map<List<Object>,Request> knownById = new HashMap<>();
+        Map<List<Object>,Request> unknown = new HashMap<>();
+        for (Request request : requests) {
+            if (request.queueId != 0) {
+                known.add(request);
+                request.index(knownById);
+            } else {
+                request.index(unknown);
+            }
+        }
+        Queue q = jenkins.getQueue();
+        List<Request> left = new ArrayList<>();
+        Queue.withLock(() -> {
+            // one pass over the queue, rather than Queue.getItem scanning it again for each request
+            Map<Long,Queue.Item> items = new HashMap<>();
+            for (Queue.Item i : q.getItems()) {
+                items.put(i.getId(), i);
+            }
+            for (Request request : known) {
+                if (request.run != null) {
+                    continue;
+                }
+                Queue.Item i = items.get(request.queueId);
+                if (i != null) {
+                    q.cancel(i);
+                    found.add(request);
+                } else {
+                    left.add(request);
+                }
+            }
+            if (!unknown.isEmpty()) {
+                // executions which did not record what they scheduled
+                for (Queue.Item i : items.values()) {
+                    for (BuildTriggerAction.Trigger trigger : BuildTriggerAction.triggersFor(i)) {
+                        Request request = unknown.get(Arrays.asList(trigger.id(), trigger.key));
+                        if (request != null) {
+                            // Note that it is a little questionable to cancel the queue item in case it has other causes,
+                            // but in the common case that this is the only cause, it is most intuitive to do so.
+                            // The same applies to aborting the actual build once started.
+                            q.cancel(i);
+                            found.add(request);
+                        }
+                    }
+                }
+            }
+        });
+        for (Request request : left) {
+            // left the queue since the step looked; usually started by now
+            BuildTriggerRegistry.Entry entry = BuildTriggerRegistry.forQueueId(request.queueId);
+            if (entry != null && entry.run != null) {
+                request.run = entry.run;
+                request.executor = entry.executor;
+                continue;
+            }
+            // BuildTriggerListener.onStarted has not yet been called
+            Queue.Item i = q.getItem(request.queueId);
+            if (i instanceof Queue.LeftItem) {
+                Queue.Executable exec = ((Queue.LeftItem) i).getExecutable();
+                if (exec instanceof Run) {
+                    request.run = (Run<?,?>) exec;
+                }
+            }
+        }
+        Set<Run<?,?>> interrupted = new LinkedHashSet<>();
+        for (Request request : known) {
+            Run<?,?> run = request.run;
+            if (found.contains(request) || run == null) {
+                continue;
+            }
+            Executor e = request.executor;
+            if (e == null || e.getCurrentExecutable() != run) {
+                e = run instanceof Queue.Executable ? Executor.of((Queue.Executable) run) : null;
+            }
+            if (e != null) {
+                interrupt(e, knownById, found, interrupted);
+            }
+        }
+        if (!unknown.isEmpty()) {
+            for (Computer c : jenkins.getComputers()) {
+                for (Executor e : c.getExecutors()) {
+                    interrupt(e, unknown, found, interrupted);
+                }
+                for (Executor e : c.getOneOffExecutors()) {
+                    interrupt(e, unknown, found, interrupted);
+                }
+            }
+        }
+        for (Run<?,?> run : interrupted) {
+            BuildTriggerPersistence.saveLater(run);
+        }
+    }
+
+    /** Interrupts the build on an executor if any of its triggers was requested, recording the cause on each such trigger. */
+    private static void interrupt(Executor e, Map<List<Object>,Request> requests, Set<Request> found, Set<Run<?,?>> interrupted) {
+        Queue.Executable exec = e.getCurrentExecutable();
+        if (!(exec instanceof Run)) {
+            return;
+        }
+        Run<?,?> run = (Run<?,?>) exec;
+        for (BuildTriggerAction.Trigger trigger : BuildTriggerAction.triggersFor(run)) {
+            Request request = requests.get(Arrays.asList(trigger.id(), trigger.key));
+            if (request == null) {
+                continue;
+            }
+            if (interrupted.add(run)) {
+                e.interrupt(Result.ABORTED, new BuildTriggerCancelledCause(request.cause));
+            }
+            trigger.interruption = request.cause;
+            found.add(request);
+        }
+    }
+
+}
@@ -0,0 +1,119 @@
+package org.jenkinsci.plugins.workflow.support.steps.build;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Delivers the outcomes of downstream builds to {@link BuildTriggerAction.Trigger}s off the listener threads.
+ * {@link BuildQueueListener} runs under the queue lock and {@link BuildTriggerListener} on the thread shared by all run listeners,
+ * so neither should resume step executions one by one, as when many coalesced triggers wait for one build.
+ * The pool is bounded; when its queue is full, outcomes overflow to {@link Timer} rather than being dropped.
+ * They are never delivered on the listener thread itself, since {@link BuildTriggerAction.Trigger#context} must not be called under the queue lock.
+ */
+final class BuildTriggerDispatcher {
+
+    private static final Logger LOGGER = Logger.getLogger(BuildTriggerDispatcher.class.getName());
+
+    @Restricted(NoExternalUse.class)
+    static /* not final */ int THREADS = SystemProperties.getInteger(BuildTriggerDispatcher.class.getName() + ".threads", 4);
+
+    @Restricted(NoExternalUse.class)
+    static /* not final */ int CAPACITY = SystemProperties.getInteger(BuildTriggerDispatcher.class.getName() + ".capacity", 10000);
+
+    private static final ThreadPoolExecutor executor;
+    static {
+        executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(CAPACITY),
+                new NamingThreadFactory(new DaemonThreadFactory(), "BuildTriggerDispatcher"), BuildTriggerDispatcher::overflow);
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private static final AtomicLong delivered = new AtomicLong();
+    private static final AtomicLong totalLatency = new AtomicLong();
+    private static final AtomicLong maxLatency = new AtomicLong();
+    private static volatile long lastWarning;
+    private static volatile long lastOverflowWarning;
+
+    private BuildTriggerDispatcher() {}
+
+    /** @param job full name of the downstream job, for {@link BuildTriggerMetrics} */
+    static void success(@Nonnull BuildTriggerAction.Trigger trigger, @CheckForNull Object result, @Nonnull String job) {
+        dispatch(trigger, result, null, job);
+    }
+
+    /** @param job full name of the downstream job, for {@link BuildTriggerMetrics} */
+    static void failure(@Nonnull BuildTriggerAction.Trigger trigger, @Nonnull Throwable failure, @Nonnull String job) {
+        dispatch(trigger, null, failure, job);
+    }
+
+    private static void dispatch(final BuildTriggerAction.Trigger trigger, final Object result, final Throwable failure, final String job) {
+        final long submitted = System.nanoTime();
+        int depth = executor.getQueue().size();
+        if (depth > CAPACITY / 2 && System.currentTimeMillis() - lastWarning > TimeUnit.MINUTES.toMillis(1)) {
+            lastWarning = System.currentTimeMillis();
+            LOGGER.log(Level.WARNING, "{0} build step outcomes waiting to be delivered; consider raising {1}.threads", new Object[] {depth, BuildTriggerDispatcher.class.getName()});
+        }
+        executor.execute(new Runnable() {
+            @Override public void run() {
+                try {
+                    if (failure != null) {
+                        trigger.onFailure(failure);
+                    } else {
+                        trigger.onSuccess(result);
+                    }
+                } catch (RuntimeException x) {
+                    LOGGER.log(Level.WARNING, "failed to notify " + trigger, x);
+                } finally {
+                    long latency = System.nanoTime() - submitted;
+                    delivered.incrementAndGet();
+                    totalLatency.addAndGet(latency);
+                    maxLatency.accumulateAndGet(latency, Math::max);
+                    BuildTriggerMetrics.delivered(job, TimeUnit.NANOSECONDS.toMillis(latency));
+                    LOGGER.log(Level.FINER, "notified {0} after {1}ns", new Object[] {trigger, latency});
+                }
+            }
+        });
+    }
+
+    private static void overflow(Runnable task, ThreadPoolExecutor full) {
+        if (System.currentTimeMillis() - lastOverflowWarning > TimeUnit.MINUTES.toMillis(1)) {
+            lastOverflowWarning = System.currentTimeMillis();
+            LOGGER.log(Level.WARNING, "more than {0} build step outcomes waiting to be delivered; handing the rest to the shared timer, consider raising {1}.capacity",
+                    new Object[] {CAPACITY, BuildTriggerDispatcher.class.getName()});
+        }
+        Timer.get().execute(task);
+    }
+
+    /** Number of outcomes waiting for a thread. */
+    static int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /** Number of outcomes delivered so far. */
+    static long getDelivered() {
+        return delivered.get();
+    }
+
+    /** Mean time from a listener callback to the delivery of its outcome, in milliseconds. */
+    static double getMeanLatencyMillis() {
+        long n = delivered.get();
+        return n == 0 ? 0 : totalLatency.get() / 1e6 / n;
+    }
+
+    /** Longest time from a listener callback to the delivery of its outcome, in milliseconds. */
+    static double getMaxLatencyMillis() {
+        return maxLatency.get() / 1e6;
+    }
+
+}
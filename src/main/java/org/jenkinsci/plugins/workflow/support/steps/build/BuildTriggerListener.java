@@ -3,6 +3,7 @@ package org.jenkinsci.plugins.workflow.support.steps.build;
 import hudson.AbortException;
 import hudson.Extension;
 import hudson.console.ModelHyperlinkNote;
+import hudson.model.Executor;
 import hudson.model.Result;
 import hudson.model.Run;
 import hudson.model.TaskListener;
@@ -10,7 +11,6 @@ import hudson.model.listeners.RunListener;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nonnull;
-import jenkins.util.Timer;
 import org.jenkinsci.plugins.workflow.steps.FlowInterruptedException;
 import org.jenkinsci.plugins.workflow.steps.StepContext;
 
@@ -21,8 +21,13 @@ public class BuildTriggerListener extends RunListener<Run<?,?>>{
 
     @Override
     public void onStarted(Run<?, ?> run, TaskListener listener) {
-        for (BuildTriggerAction.Trigger trigger : BuildTriggerAction.triggersFor(run)) {
-            StepContext stepContext = trigger.context;
+        BuildAvoidance.started(run);
+        Iterable<BuildTriggerAction.Trigger> triggers = BuildTriggerAction.triggersFor(run);
+        // RunListener.fireStarted is called from the executor thread, so this is the executor to interrupt in stop().
+        BuildTriggerRegistry.started(run, Executor.currentExecutor(), triggers);
+        DownstreamBuildAction.started(run);
+        for (BuildTriggerAction.Trigger trigger : triggers) {
+            StepContext stepContext = trigger.contextIfKnown();
             if (stepContext != null && stepContext.isReady()) {
                 LOGGER.log(Level.FINE, "started building {0} from #{1} in {2}", new Object[] {run, run.getQueueId(), stepContext});
                 try {
@@ -33,7 +38,16 @@ public class BuildTriggerListener extends RunListener<Run<?,?>>{
                     LOGGER.log(Level.WARNING, null, e);
                 }
             } else {
-                LOGGER.log(Level.FINE, "{0} unavailable in {1}", new Object[] {stepContext, run});
+                LOGGER.log(Level.FINE, "{0} unavailable in {1}", new Object[] {trigger, run});
+            }
+            if (trigger.waitForStart) {
+                // answer now, and make sure onCompleted does not answer again
+                BuildTriggerAction.remove(run, trigger);
+                BuildTriggerPersistence.saveLater(run);
+                if (stepContext != null) {
+                    BuildTriggerRegistry.unregister(stepContext);
+                }
+                BuildTriggerDispatcher.success(trigger, new RunWrapper(run, false), run.getParent().getFullName());
             }
         }
     }
@@ -41,30 +55,47 @@ public class BuildTriggerListener extends RunListener<Run<?,?>>{
     @Override
     @SuppressWarnings("deprecation") // TODO 2.30+ use removeAction
     public void onCompleted(Run<?,?> run, @Nonnull TaskListener listener) {
-        for (BuildTriggerAction.Trigger trigger : BuildTriggerAction.triggersFor(run)) {
-            LOGGER.log(Level.FINE, "completing {0} for {1}", new Object[] {run, trigger.context});
+        String job = run.getParent().getFullName();
+        if (run.getAction(BuildUpstreamNodeAction.class) != null) {
+            Result result = run.getResult();
+            BuildTriggerMetrics.completed(job, System.currentTimeMillis() - run.getStartTimeInMillis(), result != null && result.isWorseThan(Result.SUCCESS));
+            BuildTraceExporter.completed(run);
+        }
+        // before looking for triggers, so that BuildAvoidance.attach cannot add one we would miss
+        BuildAvoidance.completed(run);
+        Iterable<BuildTriggerAction.Trigger> triggers = BuildTriggerAction.triggersFor(run);
+        BuildTriggerRegistry.done(run.getQueueId(), triggers);
+        try {
+            // make sure any recorded interruption is on disk before the step learns of it
+            BuildTriggerPersistence.flush(run);
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        }
+        for (BuildTriggerAction.Trigger trigger : triggers) {
+            LOGGER.log(Level.FINE, "completing {0} for {1}", new Object[] {run, trigger});
             if (!trigger.propagate || run.getResult() == Result.SUCCESS) {
-                if (trigger.interruption == null) {
-                    trigger.context.onSuccess(new RunWrapper(run, false));
+                Throwable interruption = trigger.interruption;
+                if (interruption == null) {
+                    BuildTriggerDispatcher.success(trigger, new RunWrapper(run, false), job);
                 } else {
-                    trigger.context.onFailure(trigger.interruption);
+                    BuildTriggerDispatcher.failure(trigger, interruption, job);
                 }
             } else {
                 Result result = run.getResult();
-                trigger.context.onFailure(new FlowInterruptedException(result != null ? result : /* probably impossible */ Result.FAILURE, new DownstreamFailureCause(run)));
+                BuildTriggerDispatcher.failure(trigger, new FlowInterruptedException(result != null ? result : /* probably impossible */ Result.FAILURE, new DownstreamFailureCause(run)), job);
             }
         }
         run.getActions().removeAll(run.getActions(BuildTriggerAction.class));
+        BuildTriggerRegistry.completed(run);
+        BuildTriggerThrottle.completed(run.getQueueId());
     }
 
     @Override
-    public void onDeleted(final Run<?,?> run) {
-        for (final BuildTriggerAction.Trigger trigger : BuildTriggerAction.triggersFor(run)) {
-            Timer.get().submit(new Runnable() {
-                @Override public void run() {
-                    trigger.context.onFailure(new AbortException(run.getFullDisplayName() + " was deleted"));
-                }
-            });
+    public void onDeleted(Run<?,?> run) {
+        Iterable<BuildTriggerAction.Trigger> triggers = BuildTriggerAction.triggersFor(run);
+        BuildTriggerRegistry.done(run.getQueueId(), triggers);
+        for (BuildTriggerAction.Trigger trigger : triggers) {
+            BuildTriggerDispatcher.failure(trigger, new AbortException(run.getFullDisplayName() + " was deleted"), run.getParent().getFullName());
         }
     }
 }
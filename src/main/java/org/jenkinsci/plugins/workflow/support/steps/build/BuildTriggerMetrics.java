@@ -0,0 +1,260 @@
+package org.jenkinsci.plugins.workflow.support.steps.build;
+
+import hudson.model.Item;
+import hudson.model.Queue;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.annotation.Nonnull;
+import net.sf.json.JSONObject;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Counters and latency histograms for downstream builds triggered by the build steps, per target job.
+ * Recorded along the path from {@link BuildTriggerStepExecution#scheduleBuild} through {@link BuildQueueListener} and {@link BuildTriggerListener}
+ * to {@link BuildTriggerDispatcher}; shown by {@link BuildTriggerMetricsLink}. Kept in memory only.
+ */
+@Restricted(NoExternalUse.class)
+public final class BuildTriggerMetrics {
+
+    /** A histogram of durations with fixed, roughly logarithmic buckets. */
+    public static final class Histogram {
+
+        /** Upper bounds of all but the last bucket, in milliseconds. */
+        private static final long[] BOUNDS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000, 300000, 900000, 3600000};
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long millis) {
+            if (millis < 0) {
+                millis = 0;
+            }
+            int i = 0;
+            while (i < BOUNDS.length && millis > BOUNDS[i]) {
+                i++;
+            }
+            buckets.incrementAndGet(i);
+            count.incrementAndGet();
+            total.addAndGet(millis);
+            max.accumulateAndGet(millis, Math::max);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getMean() {
+            long n = count.get();
+            return n == 0 ? 0 : total.get() / n;
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        /** Estimates a percentile as the upper bound of the bucket it falls in, or {@link #getMax} for the last bucket. */
+        public long getPercentile(int percentile) {
+            long n = count.get();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile / 100.0 * n);
+            long seen = 0;
+            for (int i = 0; i < BOUNDS.length; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(BOUNDS[i], getMax());
+                }
+            }
+            return getMax();
+        }
+
+        JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            json.put("count", getCount());
+            json.put("mean", getMean());
+            json.put("max", getMax());
+            json.put("p50", getPercentile(50));
+            json.put("p95", getPercentile(95));
+            json.put("p99", getPercentile(99));
+            JSONObject b = new JSONObject();
+            for (int i = 0; i < BOUNDS.length; i++) {
+                b.put("le" + BOUNDS[i], buckets.get(i));
+            }
+            b.put("inf", buckets.get(BOUNDS.length));
+            json.put("buckets", b);
+            return json;
+        }
+
+    }
+
+    /** Everything recorded about one target job. */
+    public static final class JobMetrics {
+
+        private final AtomicLong triggers = new AtomicLong();
+        private final AtomicLong coalesced = new AtomicLong();
+        private final AtomicLong reused = new AtomicLong();
+        private final AtomicLong refused = new AtomicLong();
+        private final AtomicLong retried = new AtomicLong();
+        private final AtomicLong cancelled = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+
+        /** Time taken to put the build in the queue. */
+        private final Histogram schedule = new Histogram();
+        /** Time spent in the queue. */
+        private final Histogram queue = new Histogram();
+        /** Time spent running. */
+        private final Histogram run = new Histogram();
+        /** Time from completion until the waiting step was told. */
+        private final Histogram callback = new Histogram();
+
+        public long getTriggers() {
+            return triggers.get();
+        }
+
+        public long getCoalesced() {
+            return coalesced.get();
+        }
+
+        public long getReused() {
+            return reused.get();
+        }
+
+        public long getRefused() {
+            return refused.get();
+        }
+
+        /** Refused builds which the step will try to schedule again. */
+        public long getRetried() {
+            return retried.get();
+        }
+
+        public long getCancelled() {
+            return cancelled.get();
+        }
+
+        public long getFailed() {
+            return failed.get();
+        }
+
+        public Histogram getSchedule() {
+            return schedule;
+        }
+
+        public Histogram getQueue() {
+            return queue;
+        }
+
+        public Histogram getRun() {
+            return run;
+        }
+
+        public Histogram getCallback() {
+            return callback;
+        }
+
+        JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            json.put("triggers", getTriggers());
+            json.put("coalesced", getCoalesced());
+            json.put("reused", getReused());
+            json.put("refused", getRefused());
+            json.put("retried", getRetried());
+            json.put("cancelled", getCancelled());
+            json.put("failed", getFailed());
+            json.put("schedule", schedule.toJSON());
+            json.put("queue", queue.toJSON());
+            json.put("run", run.toJSON());
+            json.put("callback", callback.toJSON());
+            return json;
+        }
+
+    }
+
+    private static final ConcurrentMap<String,JobMetrics> byJob = new ConcurrentHashMap<>();
+
+    private BuildTriggerMetrics() {}
+
+    static JobMetrics of(@Nonnull String job) {
+        return byJob.computeIfAbsent(job, j -> new JobMetrics());
+    }
+
+    static String nameOf(@Nonnull Queue.Task task) {
+        return task instanceof Item ? ((Item) task).getFullName() : task.getFullDisplayName();
+    }
+
+    static void scheduled(@Nonnull String job, long millis) {
+        JobMetrics m = of(job);
+        m.triggers.incrementAndGet();
+        m.schedule.record(millis);
+    }
+
+    static void refused(@Nonnull String job) {
+        of(job).refused.incrementAndGet();
+    }
+
+    static void retried(@Nonnull String job) {
+        of(job).retried.incrementAndGet();
+    }
+
+    static void coalesced(@Nonnull String job) {
+        of(job).coalesced.incrementAndGet();
+    }
+
+    static void reused(@Nonnull String job) {
+        of(job).reused.incrementAndGet();
+    }
+
+    static void left(@Nonnull String job, long millis, boolean cancelled) {
+        JobMetrics m = of(job);
+        m.queue.record(millis);
+        if (cancelled) {
+            m.cancelled.incrementAndGet();
+        }
+    }
+
+    static void completed(@Nonnull String job, long millis, boolean failed) {
+        JobMetrics m = of(job);
+        m.run.record(millis);
+        if (failed) {
+            m.failed.incrementAndGet();
+        }
+    }
+
+    static void delivered(@Nonnull String job, long millis) {
+        of(job).callback.record(millis);
+    }
+
+    /** Snapshot of all jobs, sorted by name. */
+    public static Map<String,JobMetrics> getJobs() {
+        return new TreeMap<>(byJob);
+    }
+
+    static void reset() {
+        byJob.clear();
+    }
+
+    static JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        JSONObject dispatcher = new JSONObject();
+        dispatcher.put("queueDepth", BuildTriggerDispatcher.getQueueDepth());
+        dispatcher.put("delivered", BuildTriggerDispatcher.getDelivered());
+        dispatcher.put("meanLatency", BuildTriggerDispatcher.getMeanLatencyMillis());
+        dispatcher.put("maxLatency", BuildTriggerDispatcher.getMaxLatencyMillis());
+        json.put("dispatcher", dispatcher);
+        JSONObject jobs = new JSONObject();
+        for (Map.Entry<String,JobMetrics> e : getJobs().entrySet()) {
+            jobs.put(e.getKey(), e.getValue().toJSON());
+        }
+        json.put("jobs", jobs);
+        return json;
+    }
+
+}
@@ -0,0 +1,64 @@
+package org.jenkinsci.plugins.workflow.support.steps.build;
+
+import hudson.Extension;
+import hudson.model.ManagementLink;
+import hudson.util.HttpResponses;
+import java.util.Map;
+import jenkins.model.Jenkins;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+/**
+ * Shows {@link BuildTriggerMetrics} to administrators, as a page under <b>Manage Jenkins</b> and as JSON from {@code buildTriggerMetrics/json}.
+ */
+@Restricted(NoExternalUse.class)
+@Extension public class BuildTriggerMetricsLink extends ManagementLink {
+
+    @Override public String getIconFileName() {
+        return "graph.png";
+    }
+
+    @Override public String getDisplayName() {
+        return Messages.BuildTriggerMetricsLink_DisplayName();
+    }
+
+    @Override public String getDescription() {
+        return Messages.BuildTriggerMetricsLink_Description();
+    }
+
+    @Override public String getUrlName() {
+        return "buildTriggerMetrics";
+    }
+
+    public Map<String,BuildTriggerMetrics.JobMetrics> getJobs() {
+        Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+        return BuildTriggerMetrics.getJobs();
+    }
+
+    public int getDispatcherQueueDepth() {
+        return BuildTriggerDispatcher.getQueueDepth();
+    }
+
+    public long getDispatcherDelivered() {
+        return BuildTriggerDispatcher.getDelivered();
+    }
+
+    public String getDispatcherLatency() {
+        return String.format("%.1f / %.1f", BuildTriggerDispatcher.getMeanLatencyMillis(), BuildTriggerDispatcher.getMaxLatencyMillis());
+    }
+
+    public HttpResponse doJson() {
+        Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+        return HttpResponses.okJSON(BuildTriggerMetrics.toJSON());
+    }
+
+    @RequirePOST
+    public HttpResponse doReset() {
+        Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+        BuildTriggerMetrics.reset();
+        return HttpResponses.redirectToDot();
+    }
+
+}
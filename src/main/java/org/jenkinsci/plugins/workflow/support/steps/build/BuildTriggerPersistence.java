@@ -0,0 +1,111 @@
+package org.jenkinsci.plugins.workflow.support.steps.build;
+
+import hudson.model.Run;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+import jenkins.util.Timer;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+
+/**
+ * Saves downstream builds after changes to their {@link BuildTriggerAction}s, such as a recorded interruption, off the calling thread.
+ * Likewise saves upstream flow nodes after changes to their {@link DownstreamBuildAction}s.
+ * Saves requested for a build or node before a pending one has been written are merged into it.
+ * {@link #flush} makes sure a build has been written before the outcome of its triggers is delivered.
+ */
+final class BuildTriggerPersistence {
+
+    private static final Logger LOGGER = Logger.getLogger(BuildTriggerPersistence.class.getName());
+
+    /** {@link Run}s and {@link FlowNode}s waiting to be saved, in order of request; guards itself, {@link #saving} and {@link #draining}. */
+    private static final Set<Object> pending = new LinkedHashSet<>();
+
+    /** Builds and nodes being saved now. */
+    private static final Set<Object> saving = Collections.newSetFromMap(new IdentityHashMap<Object,Boolean>());
+
+    /** Whether a {@link Timer} task is draining {@link #pending}. */
+    private static boolean draining;
+
+    private BuildTriggerPersistence() {}
+
+    /** Asks for a build to be saved soon. */
+    static void saveLater(@Nonnull Run<?,?> run) {
+        enqueue(run);
+    }
+
+    /** Asks for a flow node to be saved soon. */
+    static void saveLater(@Nonnull FlowNode node) {
+        enqueue(node);
+    }
+
+    private static void enqueue(Object saveable) {
+        synchronized (pending) {
+            if (!pending.add(saveable)) {
+                LOGGER.log(Level.FINER, "merged save of {0}", saveable);
+                return;
+            }
+            if (draining) {
+                return;
+            }
+            draining = true;
+        }
+        Timer.get().submit(BuildTriggerPersistence::drain);
+    }
+
+    private static void drain() {
+        while (true) {
+            Object saveable;
+            synchronized (pending) {
+                Iterator<Object> it = pending.iterator();
+                if (!it.hasNext()) {
+                    draining = false;
+                    return;
+                }
+                saveable = it.next();
+                it.remove();
+                saving.add(saveable);
+            }
+            try {
+                save(saveable);
+            } finally {
+                synchronized (pending) {
+                    saving.remove(saveable);
+                    pending.notifyAll();
+                }
+            }
+        }
+    }
+
+    /** Writes a build now if it is waiting to be saved, or waits if it is being saved. */
+    static void flush(@Nonnull Run<?,?> run) throws InterruptedException {
+        boolean wasPending;
+        synchronized (pending) {
+            wasPending = pending.remove(run);
+            while (!wasPending && saving.contains(run)) {
+                pending.wait();
+            }
+        }
+        if (wasPending) {
+            save(run);
+        }
+    }
+
+    private static void save(Object saveable) {
+        try {
+            if (saveable instanceof Run) {
+                ((Run<?,?>) saveable).save();
+            } else {
+                ((FlowNode) saveable).save();
+            }
+        } catch (IOException x) {
+            LOGGER.log(Level.WARNING, "failed to save trigger state of " + saveable, x);
+        }
+    }
+
+}
@@ -0,0 +1,296 @@
+package org.jenkinsci.plugins.workflow.support.steps.build;
+
+import com.google.common.collect.Iterables;
+import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.listeners.ItemListener;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+
+/**
+ * In-memory index from waiting {@link BuildTriggerAction.Trigger}s to the queue item, and later the build, they wait for,
+ * and from their contexts to the step executions to notify.
+ * Lets {@link BuildTriggerStepExecution#stop} find its downstream build without scanning the queue and every executor.
+ * Kept current by {@link BuildQueueListener} and {@link BuildTriggerListener}; not persisted,
+ * so after a restart callers must be prepared to find nothing here.
+ */
+final class BuildTriggerRegistry {
+
+    private static final Logger LOGGER = Logger.getLogger(BuildTriggerRegistry.class.getName());
+
+    /** A downstream queue item, and the build it turned into once started. */
+    static final class Entry {
+
+        final long queueId;
+
+        volatile @CheckForNull Run<?,?> run;
+
+        /** Executor running {@link #run}, if known. */
+        volatile @CheckForNull Executor executor;
+
+        Entry(long queueId) {
+            this.queueId = queueId;
+        }
+
+    }
+
+    private static final ConcurrentMap<Long,Entry> byQueueId = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<StepContext,Entry> byContext = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<StepContext,BuildTriggerStepExecution> executions = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<StepContext,BuildAllStepExecution> batches = new ConcurrentHashMap<>();
+    /** Contexts of registered executions by {@link BuildTriggerAction.Trigger#id}, for triggers loaded from disk. */
+    private static final ConcurrentMap<String,StepContext> contexts = new ConcurrentHashMap<>();
+    /** Outcomes for batches which have not yet been {@linkplain #registerBatch resumed} after a restart. */
+    private static final ConcurrentMap<StepContext,List<Object[]>> undelivered = new ConcurrentHashMap<>();
+    /** {@code awaitBuilds} executions by the queue item IDs they watch. */
+    private static final ConcurrentMap<Long,Set<AwaitBuildsStepExecution>> awaiting = new ConcurrentHashMap<>();
+    /** Whether {@link #reconcile} has run. */
+    private static final AtomicBoolean reconciled = new AtomicBoolean();
+
+    private BuildTriggerRegistry() {}
+
+    static @CheckForNull Entry forContext(@Nonnull StepContext context) {
+        return byContext.get(context);
+    }
+
+    static @CheckForNull Entry forQueueId(long queueId) {
+        return byQueueId.get(queueId);
+    }
+
+    /** Finds the context of a waiting execution by {@link BuildTriggerAction.Trigger#id}, without loading anything. */
+    static @CheckForNull StepContext contextOf(@Nonnull String id) {
+        return contexts.get(id);
+    }
+
+    /** Records a waiting execution, so that it can be told about its downstream build. */
+    static void register(@Nonnull StepContext context, @Nonnull BuildTriggerStepExecution execution) {
+        executions.put(context, execution);
+        String id = execution.upstreamId();
+        if (id != null) {
+            contexts.put(id, context);
+        }
+    }
+
+    /** Forgets an execution which is no longer waiting, such as because its downstream build could not be scheduled. */
+    static void unregister(@Nonnull StepContext context) {
+        BuildTriggerStepExecution execution = executions.remove(context);
+        if (execution != null) {
+            String id = execution.upstreamId();
+            if (id != null) {
+                contexts.remove(id, context);
+            }
+        }
+        byContext.remove(context);
+    }
+
+    /** Records a waiting batch, handing it anything which finished before it resumed. */
+    static void registerBatch(@Nonnull StepContext context, @Nonnull BuildAllStepExecution batch) {
+        List<Object[]> outcomes;
+        synchronized (undelivered) {
+            batches.put(context, batch);
+            String id = batch.upstreamId();
+            if (id != null) {
+                contexts.put(id, context);
+            }
+            outcomes = undelivered.remove(context);
+        }
+        if (outcomes != null) {
+            for (Object[] outcome : outcomes) {
+                batch.done((String) outcome[0], outcome[1], (Throwable) outcome[2]);
+            }
+        }
+    }
+
+    static void unregisterBatch(@Nonnull StepContext context) {
+        BuildAllStepExecution batch = batches.remove(context);
+        if (batch != null) {
+            String id = batch.upstreamId();
+            if (id != null) {
+                contexts.remove(id, context);
+            }
+        }
+    }
+
+    /** Delivers the outcome of one downstream build of a batch. */
+    static void batchDone(@Nonnull StepContext context, @Nonnull String key, @CheckForNull Object result, @CheckForNull Throwable failure) {
+        BuildAllStepExecution batch = batches.get(context);
+        if (batch == null) {
+            synchronized (undelivered) {
+                batch = batches.get(context);
+                if (batch == null) {
+                    LOGGER.log(Level.FINE, "holding outcome of {0} until {1} resumes", new Object[] {key, context});
+                    undelivered.computeIfAbsent(context, c -> new ArrayList<>()).add(new Object[] {key, result, failure});
+                    return;
+                }
+            }
+        }
+        batch.done(key, result, failure);
+    }
+
+    /** Asks for {@link AwaitBuildsStepExecution#completed} or {@link AwaitBuildsStepExecution#cancelled} to be called. */
+    static void await(long queueId, @Nonnull AwaitBuildsStepExecution execution) {
+        awaiting.computeIfAbsent(queueId, id -> ConcurrentHashMap.newKeySet()).add(execution);
+    }
+
+    static void unawait(long queueId, @Nonnull AwaitBuildsStepExecution execution) {
+        awaiting.computeIfPresent(queueId, (id, executions) -> executions.remove(execution) && executions.isEmpty() ? null : executions);
+    }
+
+    /** Notifies anyone awaiting a build which has completed. */
+    static void completed(@Nonnull Run<?,?> run) {
+        Set<AwaitBuildsStepExecution> executions = awaiting.get(run.getQueueId());
+        if (executions != null) {
+            for (AwaitBuildsStepExecution execution : executions) {
+                execution.completed(run);
+            }
+        }
+    }
+
+    /** Notifies anyone awaiting a queue item which was cancelled. */
+    static void cancelled(@Nonnull Queue.LeftItem li) {
+        Set<AwaitBuildsStepExecution> executions = awaiting.get(li.getId());
+        if (executions != null) {
+            for (AwaitBuildsStepExecution execution : executions) {
+                execution.cancelled(li);
+            }
+        }
+    }
+
+    /** Records that some triggers now wait for a given queue item. */
+    static void queued(long queueId, @Nonnull Iterable<BuildTriggerAction.Trigger> triggers) {
+        Entry entry = null;
+        for (BuildTriggerAction.Trigger trigger : triggers) {
+            if (entry == null) {
+                entry = byQueueId.computeIfAbsent(queueId, Entry::new);
+            }
+            StepContext context = trigger.contextIfKnown();
+            if (trigger.key == null && context != null) {
+                // otherwise linked by resumed once the execution is back
+                byContext.put(context, entry);
+            }
+            LOGGER.log(Level.FINER, "{0} waiting for queue item #{1}", new Object[] {trigger, queueId});
+        }
+    }
+
+    /** Records that a build has started; its triggers are indexed too, in case we missed the queue phase. */
+    static void started(@Nonnull Run<?,?> run, @CheckForNull Executor executor, @Nonnull Iterable<BuildTriggerAction.Trigger> triggers) {
+        Entry entry = byQueueId.get(run.getQueueId());
+        for (BuildTriggerAction.Trigger trigger : triggers) {
+            if (entry == null) {
+                entry = byQueueId.computeIfAbsent(run.getQueueId(), Entry::new);
+            }
+            StepContext context = trigger.contextIfKnown();
+            if (context == null) {
+                continue;
+            }
+            if (trigger.key == null) {
+                byContext.put(context, entry);
+                BuildTriggerStepExecution execution = executions.get(context);
+                if (execution != null) {
+                    execution.started(run);
+                }
+            } else {
+                BuildAllStepExecution batch = batches.get(context);
+                if (batch != null) {
+                    batch.started(trigger.key, run);
+                }
+            }
+        }
+        if (entry != null) {
+            entry.run = run;
+            entry.executor = executor;
+        }
+    }
+
+    /**
+     * Records a downstream queue item or build found by a resumed execution,
+     * whose trigger was loaded from disk before the execution could be linked to it.
+     * @param run the build, or null if still queued
+     */
+    static void resumed(@Nonnull StepContext context, long queueId, @CheckForNull Run<?,?> run) {
+        Entry entry = byQueueId.computeIfAbsent(queueId, Entry::new);
+        if (run != null) {
+            entry.run = run;
+        }
+        byContext.put(context, entry);
+    }
+
+    /**
+     * Indexes the triggers of all queue items and running builds in one pass, once after startup,
+     * so that resumed executions find their downstream builds here rather than each scanning for them.
+     * Builds resumed later, such as Pipelines, are found by the executions themselves.
+     */
+    static void reconcile() {
+        if (reconciled.compareAndSet(false, true)) {
+            index();
+        }
+    }
+
+    private static void index() {
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins == null) {
+            return;
+        }
+        int count = 0;
+        for (Queue.Item i : jenkins.getQueue().getItems()) {
+            Iterable<BuildTriggerAction.Trigger> triggers = BuildTriggerAction.triggersFor(i);
+            queued(i.getId(), triggers);
+            count += Iterables.size(triggers);
+        }
+        for (Computer c : jenkins.getComputers()) {
+            List<Executor> executors = new ArrayList<>(c.getExecutors());
+            executors.addAll(c.getOneOffExecutors());
+            for (Executor e : executors) {
+                Queue.Executable exec = e.getCurrentExecutable();
+                if (exec instanceof Run) {
+                    Iterable<BuildTriggerAction.Trigger> triggers = BuildTriggerAction.triggersFor((Run<?,?>) exec);
+                    started((Run<?,?>) exec, e, triggers);
+                    count += Iterables.size(triggers);
+                }
+            }
+        }
+        LOGGER.log(Level.FINE, "indexed {0} build triggers after startup", count);
+    }
+
+    @Extension public static final class Reconciler extends ItemListener {
+
+        @Initializer(before = InitMilestone.JOB_LOADED)
+        public static void starting() {
+            reconciled.set(false);
+        }
+
+        /** Indexes again even if an execution resumed early, since the queue is certainly loaded by now. */
+        @Override public void onLoaded() {
+            reconciled.set(true);
+            index();
+        }
+
+    }
+
+    /** Forgets a queue item which will never turn into a build, or a build which is done. */
+    static void done(long queueId, @Nonnull Iterable<BuildTriggerAction.Trigger> triggers) {
+        byQueueId.remove(queueId);
+        for (BuildTriggerAction.Trigger trigger : triggers) {
+            StepContext context = trigger.contextIfKnown();
+            if (trigger.key == null && context != null) {
+                unregister(context);
+            }
+        }
+    }
+
+}
@@ -1,20 +1,25 @@
 package org.jenkinsci.plugins.workflow.support.steps.build;
 
 import hudson.Extension;
+import hudson.Util;
 import hudson.model.AutoCompletionCandidates;
+import hudson.model.ChoiceParameterDefinition;
 import hudson.model.Describable;
 import hudson.model.Item;
 import hudson.model.ItemGroup;
-import hudson.model.ItemVisitor;
 import hudson.model.Job;
 import hudson.model.ParameterDefinition;
 import hudson.model.ParameterValue;
 import hudson.model.ParametersDefinitionProperty;
 import hudson.model.Queue;
 import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
 import java.util.ArrayList;
 import java.util.List;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
 import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
 import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 import org.apache.commons.lang.StringUtils;
@@ -24,6 +29,7 @@ import org.jenkinsci.plugins.workflow.steps.Step;
 import org.jenkinsci.plugins.workflow.util.StaplerReferer;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.DoNotUse;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
@@ -32,11 +38,26 @@ import org.kohsuke.stapler.StaplerRequest;
 
 public class BuildTriggerStep extends AbstractStepImpl {
 
+    /** Whether a trigger may share a downstream build with other triggers of the same job and parameters. */
+    public enum Coalescing {
+        /** Always schedule a new build. */
+        NEVER,
+        /** Share a build which is still in the queue, as the queue does by default. */
+        QUEUED,
+        /** Share a build which is still in the queue or already running. */
+        QUEUED_OR_RUNNING
+    }
+
     private final String job;
     private List<ParameterValue> parameters;
     private boolean wait = true;
     private boolean propagate = true;
     private Integer quietPeriod;
+    private boolean returnHandle;
+    private boolean waitForStart;
+    private Integer reuseWithin;
+    private Coalescing coalesce;
+    private Integer scheduleAttempts;
 
     @DataBoundConstructor
     public BuildTriggerStep(String job) {
@@ -79,6 +100,57 @@ public class BuildTriggerStep extends AbstractStepImpl {
         this.propagate = propagate;
     }
 
+    /** If set along with {@link #getWait}, the step returns as soon as the downstream build starts. */
+    public boolean isWaitForStart() {
+        return waitForStart;
+    }
+
+    @DataBoundSetter public void setWaitForStart(boolean waitForStart) {
+        this.waitForStart = waitForStart;
+    }
+
+    /** If set, {@link #getWait} is ignored: the step returns a {@link DownstreamBuildHandle} as soon as the build is scheduled. */
+    public boolean isReturnHandle() {
+        return returnHandle;
+    }
+
+    @DataBoundSetter public void setReturnHandle(boolean returnHandle) {
+        this.returnHandle = returnHandle;
+    }
+
+    /**
+     * If set, a build of the same job with the same parameters is reused instead of scheduling a new one:
+     * one running now, or one which succeeded at most this many seconds ago.
+     */
+    public Integer getReuseWithin() {
+        return reuseWithin;
+    }
+
+    @DataBoundSetter public void setReuseWithin(Integer reuseWithin) {
+        this.reuseWithin = reuseWithin;
+    }
+
+    /** Never null, so that forms show {@link Coalescing#QUEUED} selected when unset. */
+    public @Nonnull Coalescing getCoalesce() {
+        return coalesce != null ? coalesce : Coalescing.QUEUED;
+    }
+
+    @DataBoundSetter public void setCoalesce(Coalescing coalesce) {
+        this.coalesce = coalesce == Coalescing.QUEUED ? null : coalesce;
+    }
+
+    /**
+     * If set above 1, a build which Jenkins refuses to schedule, such as because a {@link hudson.model.Queue.QueueDecisionHandler} vetoed it,
+     * is tried again after a growing delay, up to this many attempts in all.
+     */
+    public Integer getScheduleAttempts() {
+        return scheduleAttempts;
+    }
+
+    @DataBoundSetter public void setScheduleAttempts(Integer scheduleAttempts) {
+        this.scheduleAttempts = scheduleAttempts != null && scheduleAttempts > 1 ? scheduleAttempts : null;
+    }
+
     @Extension
     public static class DescriptorImpl extends AbstractStepDescriptorImpl {
 
@@ -133,60 +205,66 @@ public class BuildTriggerStep extends AbstractStepImpl {
         }
 
         public AutoCompletionCandidates doAutoCompleteJob(@AncestorInPath ItemGroup<?> container, @QueryParameter final String value) {
-            // TODO remove code copy&pasted from AutoCompletionCandidates.ofJobNames when it supports testing outside Item bound
-            final AutoCompletionCandidates candidates = new AutoCompletionCandidates();
-            class Visitor extends ItemVisitor {
-                String prefix;
+            return JobNameIndex.complete(container, Util.fixNull(value));
+        }
 
-                Visitor(String prefix) {
-                    this.prefix = prefix;
-                }
+        /** Number of parameters shown at once in the snippet generator; the rest are loaded on request. */
+        @Restricted(NoExternalUse.class)
+        public static /* not final */ int PARAMETERS_PAGE_SIZE = SystemProperties.getInteger(BuildTriggerStep.class.getName() + ".parametersPageSize", 25);
 
-                @Override
-                public void onItem(Item i) {
-                    String n = contextualNameOf(i);
-                    if ((n.startsWith(value) || value.startsWith(n))
-                            // 'foobar' is a valid candidate if the current value is 'foo'.
-                            // Also, we need to visit 'foo' if the current value is 'foo/bar'
-                            && (value.length() > n.length() || !n.substring(value.length()).contains("/"))
-                            // but 'foobar/zot' isn't if the current value is 'foo'
-                            // we'll first show 'foobar' and then wait for the user to type '/' to show the rest
-                            && i.hasPermission(Item.READ)
-                        // and read permission required
-                            ) {
-                        if (i instanceof Queue.Task && n.startsWith(value))
-                            candidates.add(n);
-
-                        // recurse
-                        String oldPrefix = prefix;
-                        prefix = n;
-                        super.onItem(i);
-                        prefix = oldPrefix;
-                    }
-                }
+        /** Choice parameters with more choices than this have them loaded separately by the snippet generator, from {@link #doChoices}. */
+        @Restricted(NoExternalUse.class)
+        public static /* not final */ int MAX_INLINE_CHOICES = SystemProperties.getInteger(BuildTriggerStep.class.getName() + ".maxInlineChoices", 50);
 
-                private String contextualNameOf(Item i) {
-                    if (prefix.endsWith("/") || prefix.length() == 0)
-                        return prefix + i.getName();
-                    else
-                        return prefix + '/' + i.getName();
-                }
+        /** Looks up the job whose parameters the snippet generator should show, as {@link BuildTriggerStepExecution} would. */
+        @Restricted(DoNotUse.class) // for use from parameters.groovy
+        public @CheckForNull Item findJob(@CheckForNull String job, @CheckForNull String context) {
+            if (job == null) {
+                return null;
             }
+            Item contextItem = Util.fixEmpty(context) != null ? Jenkins.getActiveInstance().getItemByFullName(context) : null;
+            return Jenkins.getActiveInstance().getItem(job, contextItem, Item.class);
+        }
 
-            if (container == null || container == Jenkins.getInstance()) {
-                new Visitor("").onItemGroup(Jenkins.getInstance());
-            } else {
-                new Visitor("").onItemGroup(container);
-                if (value.startsWith("/"))
-                    new Visitor("/").onItemGroup(Jenkins.getInstance());
+        /**
+         * Identifies the parameter form of a job as rendered for the current user, so that browsers may reuse it.
+         * Changes whenever the job is saved, and on restart.
+         */
+        @Restricted(DoNotUse.class) // for use from parameters.groovy
+        public String parametersETag(@Nonnull Job<?,?> job) {
+            return '"' + Jenkins.SESSION_HASH + '-' + ParameterDefinitionCache.of(job).version + '-' + Util.getDigestOf(Jenkins.getAuthentication().getName()) + '"';
+        }
 
-                for (StringBuilder p = new StringBuilder("../"); value.startsWith(p.toString()); p .append("../")) {
-                    container = ((Item) container).getParent();
-                    new Visitor(p.toString()).onItemGroup(container);
+        @Restricted(DoNotUse.class) // for use from parameters.groovy
+        public List<ParameterDefinition> parameterDefinitions(@Nonnull Job<?,?> job) {
+            return ParameterDefinitionCache.of(job).definitions;
+        }
+
+        @Restricted(DoNotUse.class) // for use from parameters.groovy
+        public int getParametersPageSize() {
+            return Math.max(PARAMETERS_PAGE_SIZE, 1);
+        }
+
+        /** Whether parameters.groovy should leave the choices of a parameter to be loaded from {@link #doChoices}. */
+        @Restricted(DoNotUse.class) // for use from parameters.groovy
+        public boolean isLoadChoicesSeparately(@Nonnull ParameterDefinition pDef) {
+            return pDef instanceof ChoiceParameterDefinition && ((ChoiceParameterDefinition) pDef).getChoices().size() > MAX_INLINE_CHOICES;
+        }
+
+        /** Lists the choices of a choice parameter, for the snippet generator. */
+        @Restricted(DoNotUse.class) // for use from config.jelly
+        public ListBoxModel doChoices(@QueryParameter String job, @QueryParameter String context, @QueryParameter String name) {
+            ListBoxModel choices = new ListBoxModel();
+            Item item = findJob(job, context);
+            if (item instanceof Job) {
+                ParameterDefinition pDef = ParameterDefinitionCache.of((Job<?,?>) item).byName.get(name);
+                if (pDef instanceof ChoiceParameterDefinition) {
+                    for (String choice : ((ChoiceParameterDefinition) pDef).getChoices()) {
+                        choices.add(choice);
+                    }
                 }
             }
-            return candidates;
-            // END of copy&paste
+            return choices;
         }
 
         @Restricted(DoNotUse.class) // for use from config.jelly
@@ -2,14 +2,13 @@ package org.jenkinsci.plugins.workflow.support.steps.build;
 
 import com.google.common.collect.Lists;
 import com.google.inject.Inject;
-import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import hudson.AbortException;
+import hudson.Util;
 import hudson.console.ModelHyperlinkNote;
 import hudson.model.Action;
 import hudson.model.Cause;
 import hudson.model.CauseAction;
 import hudson.model.ChoiceParameterDefinition;
-import hudson.model.Computer;
 import hudson.model.Describable;
 import hudson.model.Executor;
 import hudson.model.Item;
@@ -17,30 +16,39 @@ import hudson.model.Job;
 import hudson.model.ParameterDefinition;
 import hudson.model.ParameterValue;
 import hudson.model.ParametersAction;
-import hudson.model.ParametersDefinitionProperty;
 import hudson.model.Queue;
 import hudson.model.Result;
 import hudson.model.Run;
 import hudson.model.TaskListener;
-import hudson.model.queue.QueueTaskFuture;
 import hudson.model.queue.ScheduleResult;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
 import jenkins.model.Jenkins;
 import jenkins.model.ParameterizedJobMixIn;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
 import org.jenkinsci.plugins.workflow.actions.LabelAction;
 import org.jenkinsci.plugins.workflow.graph.FlowNode;
 import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
+import org.jenkinsci.plugins.workflow.steps.FlowInterruptedException;
 import org.jenkinsci.plugins.workflow.steps.StepContext;
 import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -48,6 +56,18 @@ public class BuildTriggerStepExecution extends AbstractStepExecutionImpl {
 
     private static final Logger LOGGER = Logger.getLogger(BuildTriggerStepExecution.class.getName());
 
+    /** How many recent builds of the downstream job to search after a restart for one which started before we recorded it. */
+    @Restricted(NoExternalUse.class)
+    static /* not final */ int RESUME_SEARCH_LIMIT = SystemProperties.getInteger(BuildTriggerStepExecution.class.getName() + ".resumeSearchLimit", 25);
+
+    /** Longest wait before the first retry of a build the queue refused, in milliseconds; doubled for each retry after. */
+    @Restricted(NoExternalUse.class)
+    static /* not final */ long RETRY_DELAY_MILLIS = SystemProperties.getLong(BuildTriggerStepExecution.class.getName() + ".retryDelayMillis", 2000L);
+
+    /** Longest wait before any retry, in milliseconds. */
+    @Restricted(NoExternalUse.class)
+    static /* not final */ long MAX_RETRY_DELAY_MILLIS = SystemProperties.getLong(BuildTriggerStepExecution.class.getName() + ".maxRetryDelayMillis", 120000L);
+
     @StepContextParameter
     private transient TaskListener listener;
     @StepContextParameter private transient Run<?,?> invokingRun;
@@ -55,7 +75,38 @@ public class BuildTriggerStepExecution extends AbstractStepExecutionImpl {
 
     @Inject(optional=true) transient BuildTriggerStep step;
 
-    @SuppressWarnings({"unchecked", "rawtypes"}) // cannot get from ParameterizedJob back to ParameterizedJobMixIn trivially
+    /** {@link Queue.Item#getId} of the downstream queue item, once scheduled; or 0 if unknown. */
+    private long queueId;
+
+    /** {@link Run#getExternalizableId} of the downstream build, once started. */
+    private volatile @CheckForNull String runId;
+
+    /** {@link Item#getFullName} of the downstream item. */
+    private @CheckForNull String jobName;
+
+    /** {@link BuildTriggerStep#isPropagate} while waiting, for use after a restart; null if saved by an older version. */
+    private @CheckForNull Boolean propagate;
+
+    /** {@link BuildTriggerStep#isWaitForStart} while waiting, for use after a restart. */
+    private boolean waitForStart;
+
+    /** Whether we are waiting for {@link BuildTriggerThrottle} to let us schedule the build. */
+    private boolean admitting;
+
+    /** Why {@link BuildTriggerThrottle} is holding us back, while {@link #admitting}. */
+    private transient @CheckForNull String admission;
+
+    private transient @CheckForNull Runnable retry;
+
+    /** The next attempt after the queue refused our build, if one is scheduled. */
+    private transient @CheckForNull ScheduledFuture<?> retryAfterRefusal;
+
+    /** Whether {@link #stop} has been called, so that a retry racing with it schedules nothing, or cancels what it scheduled. */
+    private transient boolean stopped;
+
+    /** How many times the queue has refused our build, as limited by {@link BuildTriggerStep#getScheduleAttempts}. */
+    private transient int refusals;
+
     @Override
     public boolean start() throws Exception {
         String job = step.getJob();
@@ -64,224 +115,487 @@ public class BuildTriggerStepExecution extends AbstractStepExecutionImpl {
             throw new AbortException("No item named " + job + " found");
         }
         item.checkPermission(Item.BUILD);
-        if (step.getWait() && !(item instanceof Job)) {
+        boolean wait = step.getWait() && !step.isReturnHandle();
+        if ((wait || step.isReturnHandle()) && !(item instanceof Job)) {
             // TODO find some way of allowing ComputedFolders to hook into the listener code
             throw new AbortException("Waiting for non-job items is not supported");
         }
+        if (step.getCoalesce() == BuildTriggerStep.Coalescing.NEVER && step.getReuseWithin() != null) {
+            throw new AbortException("coalesce: 'NEVER' cannot be combined with reuseWithin");
+        }
+        jobName = item.getFullName();
+        if (!admit()) {
+            return false;
+        }
+        return trigger(item);
+    }
 
+    /**
+     * Asks {@link BuildTriggerThrottle} whether we may schedule our build now.
+     * If not, {@link #retryAdmission} will be called later.
+     */
+    private synchronized boolean admit() {
+        if (stopped) {
+            return false;
+        }
+        String why = BuildTriggerThrottle.tryAdmit(jobName, invokingRun.getExternalizableId());
+        if (why == null) {
+            admitting = false;
+            admission = null;
+            return true;
+        }
+        if (admission == null) {
+            listener.getLogger().println("Waiting to trigger " + jobName + ": " + why);
+        }
+        admitting = true;
+        admission = why;
+        if (retry == null) {
+            retry = this::retryAdmission;
+        }
+        BuildTriggerThrottle.waitFor(retry);
+        return false;
+    }
+
+    private void retryAdmission() {
+        // called from a Timer thread, so act as the build would
+        try (ACLContext ctx = ACL.as(node.getExecution().getAuthentication())) {
+            synchronized (this) {
+                if (!admitting) { // stopped meanwhile
+                    return;
+                }
+            }
+            Item item = Jenkins.getActiveInstance().getItemByFullName(jobName);
+            if (item == null) {
+                throw new AbortException("No item named " + jobName + " found");
+            }
+            if (admit()) {
+                trigger(item);
+            }
+        } catch (Exception x) {
+            getContext().onFailure(x);
+        }
+    }
+
+    /** Schedules the build, once {@linkplain #admit admitted}. */
+    private boolean trigger(Item item) throws Exception {
+        boolean wait = step.getWait() && !step.isReturnHandle();
+        BuildTriggerStep.Coalescing coalesce = step.getCoalesce();
+        Integer reuseWithin = step.getReuseWithin();
+        if ((reuseWithin != null || coalesce == BuildTriggerStep.Coalescing.QUEUED_OR_RUNNING) && item instanceof Job && item instanceof ParameterizedJobMixIn.ParameterizedJob) {
+            // a negative window matches no completed build, only running ones
+            Boolean done = reuse((Job<?,?>) item, wait, reuseWithin != null ? TimeUnit.SECONDS.toMillis(reuseWithin) : -1);
+            if (done != null) {
+                BuildTriggerThrottle.unreserve(jobName, invokingRun.getExternalizableId());
+                return done;
+            }
+        }
         List<Action> actions = new ArrayList<>();
         actions.add(new CauseAction(new Cause.UpstreamCause(invokingRun)));
         actions.add(new BuildUpstreamNodeAction(node, invokingRun));
+        if (coalesce == BuildTriggerStep.Coalescing.NEVER) {
+            actions.add(new NoCoalescingAction());
+        }
+
+        if (wait) {
+            StepContext context = getContext();
+            propagate = step.isPropagate();
+            waitForStart = step.isWaitForStart();
+            actions.add(new BuildTriggerAction(context, invokingRun, node, step.isPropagate(), null, step.isWaitForStart()));
+            BuildTriggerRegistry.register(context, this);
+            LOGGER.log(Level.FINER, "scheduling a build of {0} from {1}", new Object[]{item, context});
+        }
+
+        String upstream = invokingRun.getExternalizableId();
+        synchronized (this) {
+            if (stopped) { // while a retry was on its way here
+                BuildTriggerThrottle.unreserve(jobName, upstream);
+                if (wait) {
+                    BuildTriggerRegistry.unregister(getContext());
+                }
+                return false;
+            }
+        }
+        long scheduling = System.currentTimeMillis();
+        Queue.Item queueItem = null;
+        try {
+            queueItem = scheduleBuild(item, actions, step.getParameters(), step.getQuietPeriod(), listener, node);
+        } finally {
+            if (queueItem == null) {
+                BuildTriggerThrottle.unreserve(jobName, upstream);
+                if (wait) {
+                    BuildTriggerRegistry.unregister(getContext());
+                }
+            }
+        }
+        if (queueItem == null) {
+            Integer attempts = step.getScheduleAttempts();
+            if (attempts != null && ++refusals < attempts) {
+                long delay = retryDelay(refusals);
+                listener.getLogger().println("Jenkins refused to schedule " + ModelHyperlinkNote.encodeTo(item) + "; retrying in " + Util.getTimeSpanString(delay)
+                        + " (attempt " + (refusals + 1) + " of " + attempts + ")");
+                BuildTriggerMetrics.retried(jobName);
+                synchronized (this) {
+                    // as if waiting for admission, so that stop and onResume need nothing more
+                    admitting = true;
+                    admission = "retrying after being refused " + refusals + " time" + (refusals == 1 ? "" : "s");
+                    if (retry == null) {
+                        retry = this::retryAdmission;
+                    }
+                    retryAfterRefusal = Timer.get().schedule(retry, delay, TimeUnit.MILLISECONDS);
+                }
+                return false;
+            }
+            throw new AbortException("Failed to trigger build of " + item.getFullName() + (refusals > 1 ? " after " + refusals + " attempts" : ""));
+        }
+        BuildTriggerThrottle.scheduled(jobName, upstream, queueItem);
+        queueId = queueItem.getId();
+        boolean orphaned;
+        synchronized (this) {
+            // stopped while a retry was scheduling it, too late for stop to find it; unless coalesced into a build someone else wanted
+            orphaned = stopped && queueItem.getInQueueSince() >= scheduling;
+        }
+        if (orphaned) {
+            Queue.getInstance().cancel(queueItem);
+            return false;
+        }
+        DownstreamBuildAction.queued(node, item.getFullName(), queueId);
+
+        if (wait) {
+            return false;
+        } else if (step.isReturnHandle()) {
+            getContext().onSuccess(new DownstreamBuildHandle(item.getFullName(), queueId, step.isPropagate()));
+            return true;
+        } else {
+            getContext().onSuccess(null);
+            return true;
+        }
+    }
+
+    /**
+     * Picks how long to wait before retrying a refused build: exponentially longer each time, up to {@link #MAX_RETRY_DELAY_MILLIS},
+     * with half of it random, so that steps refused together do not all retry together.
+     */
+    static long retryDelay(int refusals) {
+        long ceiling = Math.min(MAX_RETRY_DELAY_MILLIS, RETRY_DELAY_MILLIS << Math.min(refusals - 1, 20));
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
+    /**
+     * Looks for a build to stand in for a new one, as per {@link BuildTriggerStep#getReuseWithin} and {@link BuildTriggerStep#getCoalesce}.
+     * @param within how long ago a reusable build may have completed, in milliseconds
+     * @return whether the step is done, as from {@link #start}, or null if a new build is needed
+     */
+    private @CheckForNull Boolean reuse(Job<?,?> job, boolean wait, long within) throws AbortException {
+        BuildAvoidance.watch(job);
+        List<ParameterValue> parameters = step.getParameters();
+        String fingerprint = BuildAvoidance.fingerprint(job, completeDefaultParameters(parameters != null ? parameters : Collections.<ParameterValue>emptyList(), job));
+        if (fingerprint == null) {
+            listener.getLogger().println("Not reusing builds of " + ModelHyperlinkNote.encodeTo(job) + " since some parameters cannot be compared");
+            return null;
+        }
+        Run<?,?> run;
+        boolean attached = false;
+        while (true) {
+            run = BuildAvoidance.find(fingerprint, within);
+            if (run == null) {
+                return null;
+            }
+            if (!wait || step.isWaitForStart() || !run.isBuilding()) {
+                break;
+            }
+            StepContext context = getContext();
+            propagate = step.isPropagate();
+            BuildTriggerAction.Trigger trigger = new BuildTriggerAction.Trigger(context, invokingRun.getExternalizableId(), node.getId(), step.isPropagate(), null, false);
+            BuildTriggerRegistry.register(context, this);
+            if (BuildAvoidance.attach(fingerprint, run, trigger)) {
+                run.addAction(new BuildUpstreamNodeAction(node, invokingRun));
+                BuildTriggerRegistry.started(run, run instanceof Queue.Executable ? Executor.of((Queue.Executable) run) : null, Collections.singletonList(trigger));
+                attached = true;
+                break;
+            }
+            // completed meanwhile, so look again
+            BuildTriggerRegistry.unregister(context);
+        }
+        queueId = run.getQueueId();
+        runId = run.getExternalizableId();
+        DownstreamBuildAction.reused(node, run);
+        BuildTriggerMetrics.reused(jobName);
+        listener.getLogger().println("Reusing " + (run.isBuilding() ? "running build " : "") + ModelHyperlinkNote.encodeTo("/" + run.getUrl(), run.getFullDisplayName())
+                + " rather than scheduling another build with the same parameters");
+        if (attached) {
+            return false;
+        } else if (step.isReturnHandle()) {
+            getContext().onSuccess(new DownstreamBuildHandle(jobName, run, step.isPropagate()));
+        } else if (wait) {
+            getContext().onSuccess(new RunWrapper(run, false));
+        } else {
+            getContext().onSuccess(null);
+        }
+        return true;
+    }
 
+    /**
+     * Puts a downstream build in the queue.
+     * @param actions actions to attach, typically including a {@link BuildTriggerAction}
+     * @param node if not null, labeled with the item being built
+     * @return the new or coalesced queue item, or null if the queue refused it
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"}) // cannot get from ParameterizedJob back to ParameterizedJobMixIn trivially
+    static @CheckForNull Queue.Item scheduleBuild(@Nonnull Item item, @Nonnull List<Action> actions, @CheckForNull List<ParameterValue> parameters,
+                                                  @CheckForNull Integer quietPeriod, @Nonnull TaskListener listener, @CheckForNull FlowNode node) throws AbortException {
         if (item instanceof ParameterizedJobMixIn.ParameterizedJob) {
             final ParameterizedJobMixIn.ParameterizedJob project = (ParameterizedJobMixIn.ParameterizedJob) item;
             listener.getLogger().println("Scheduling project: " + ModelHyperlinkNote.encodeTo(project));
 
-            node.addAction(new LabelAction(Messages.BuildTriggerStepExecution_building_(project.getFullDisplayName())));
-
-            if (step.getWait()) {
-                StepContext context = getContext();
-                actions.add(new BuildTriggerAction(context, step.isPropagate()));
-                LOGGER.log(Level.FINER, "scheduling a build of {0} from {1}", new Object[]{project, context});
+            if (node != null) {
+                node.addAction(new LabelAction(Messages.BuildTriggerStepExecution_building_(project.getFullDisplayName())));
             }
 
-            List<ParameterValue> parameters = step.getParameters();
             if (parameters != null) {
                 parameters = completeDefaultParameters(parameters, (Job) project);
                 actions.add(new ParametersAction(parameters));
             }
-            Integer quietPeriod = step.getQuietPeriod();
-            // TODO use new convenience method in 1.621
-            if (quietPeriod == null) {
-                quietPeriod = project.getQuietPeriod();
-            }
-            QueueTaskFuture<?> f = new ParameterizedJobMixIn() {
-                @Override
-                protected Job asJob() {
-                    return (Job) project;
-                }
-            }.scheduleBuild2(quietPeriod, actions.toArray(new Action[actions.size()]));
-            if (f == null) {
-                throw new AbortException("Failed to trigger build of " + project.getFullName());
-            }
+            long start = System.currentTimeMillis();
+            // unlike the QueueTaskFuture overload, this tells us which (possibly coalesced) queue item we got
+            return recordScheduling(item, ParameterizedJobMixIn.scheduleBuild2((Job) project, quietPeriod != null ? quietPeriod : -1, actions.toArray(new Action[actions.size()])), start);
         } else if (item instanceof Queue.Task){
-            if (step.getParameters() != null && !step.getParameters().isEmpty()) {
+            if (parameters != null && !parameters.isEmpty()) {
                 throw new AbortException("Item type does not support parameters");
             }
             Queue.Task task = (Queue.Task) item;
             listener.getLogger().println("Scheduling item: " + ModelHyperlinkNote.encodeTo(item));
-            node.addAction(new LabelAction(Messages.BuildTriggerStepExecution_building_(task.getFullDisplayName())));
-            if (step.getWait()) {
-                StepContext context = getContext();
-                actions.add(new BuildTriggerAction(context, step.isPropagate()));
-                LOGGER.log(Level.FINER, "scheduling a build of {0} from {1}", new Object[]{task, context});
+            if (node != null) {
+                node.addAction(new LabelAction(Messages.BuildTriggerStepExecution_building_(task.getFullDisplayName())));
             }
 
-            Integer quietPeriod = step.getQuietPeriod();
             if (quietPeriod == null) {
-                try {
-                    Method getQuietPeriod = task.getClass().getMethod("getQuietPeriod");
-                    if (getQuietPeriod.getReturnType().equals(int.class)) {
-                        quietPeriod = (Integer) getQuietPeriod.invoke(task);
-                    }
-                } catch (NoSuchMethodException e) {
-                    // ignore, best effort only
-                } catch (IllegalAccessError | IllegalArgumentException | InvocationTargetException e) {
-                    LOGGER.log(Level.WARNING, "Could not determine quiet period of " + item.getFullName(), e);
-                }
+                quietPeriod = QuietPeriodProvider.of(task);
             }
             if (quietPeriod == null) {
                 quietPeriod = Jenkins.getActiveInstance().getQuietPeriod();
             }
+            long start = System.currentTimeMillis();
             ScheduleResult scheduleResult = Jenkins.getActiveInstance().getQueue().schedule2(task, quietPeriod,actions);
-            if (scheduleResult.isRefused()) {
-                throw new AbortException("Failed to trigger build of " + item.getFullName());
-            }
+            return recordScheduling(item, scheduleResult.getItem(), start);
         } else {
-            throw new AbortException("The item named " + job + " is a "
+            throw new AbortException("The item named " + item.getFullName() + " is a "
                     + (item instanceof Describable
                     ? ((Describable) item).getDescriptor().getDisplayName()
                     : item.getClass().getName())
                     + " which is not something that can be built");
         }
-        if (step.getWait()) {
-            return false;
-        } else {
-            getContext().onSuccess(null);
-            return true;
-        }
     }
 
-    private List<ParameterValue> completeDefaultParameters(List<ParameterValue> parameters, Job<?,?> project) throws AbortException {
-        Map<String,ParameterValue> allParameters = new HashMap<>();
-        for (ParameterValue pv : parameters) {
-            allParameters.put(pv.getName(), pv);
-        }
-        if (project != null) {
-            ParametersDefinitionProperty pdp = project.getProperty(ParametersDefinitionProperty.class);
-            if (pdp != null) {
-                for (ParameterDefinition pDef : pdp.getParameterDefinitions()) {
-                    if (!allParameters.containsKey(pDef.getName())) {
-                        ParameterValue defaultP = pDef.getDefaultParameterValue();
-                        if (defaultP != null) {
-                            allParameters.put(defaultP.getName(), defaultP);
-                        }
-                    } else {
-                        if (pDef instanceof ChoiceParameterDefinition) {
-                            ParameterValue pv = allParameters.get(pDef.getName());
-                            if (!((ChoiceParameterDefinition)pDef).getChoices().contains(pv.getValue())) {
-                                throw new AbortException("Value for choice parameter '" + pDef.getName() + "' is '" + pv.getValue() + "', "
-                                        + "but valid choices are " + ((ChoiceParameterDefinition)pDef).getChoices());
-                            }
-                        }
-                        // Get the description of specified parameters here. UI submission of parameters uses formatted description.
-                        allParameters.get(pDef.getName()).setDescription(pDef.getDescription());
-                    }
-                }
+    private static @CheckForNull Queue.Item recordScheduling(Item item, @CheckForNull Queue.Item scheduled, long start) {
+        String job = item.getFullName();
+        if (scheduled == null) {
+            BuildTriggerMetrics.refused(job);
+        } else {
+            BuildTriggerMetrics.scheduled(job, System.currentTimeMillis() - start);
+            if (scheduled.getInQueueSince() < start) {
+                BuildTriggerMetrics.coalesced(job);
             }
         }
-        return Lists.newArrayList(allParameters.values());
+        return scheduled;
     }
 
-    @SuppressFBWarnings(value="RCN_REDUNDANT_NULLCHECK_OF_NONNULL_VALUE", justification="TODO 1.653+ switch to Jenkins.getInstanceOrNull")
-    @Override
-    public void stop(Throwable cause) throws Exception {
-        StepContext context = getContext();
-        Jenkins jenkins = Jenkins.getInstance();
-        if (jenkins == null) {
-            context.onFailure(cause);
-            return;
-        }
+    /** As in {@link BuildTriggerAction.Trigger#id}; null until context parameters have been injected. */
+    @CheckForNull String upstreamId() {
+        return invokingRun != null && node != null ? BuildTriggerAction.Trigger.idOf(invokingRun, node) : null;
+    }
 
-        boolean interrupted = false;
+    /** Called by {@link BuildTriggerRegistry} when the downstream build starts. */
+    void started(@Nonnull Run<?,?> run) {
+        runId = run.getExternalizableId();
+    }
 
-        Queue q = jenkins.getQueue();
-        // if the build is still in the queue, abort it.
-        // BuildQueueListener will report the failure, so this method shouldn't call getContext().onFailure()
-        for (Queue.Item i : q.getItems()) {
-            for (BuildTriggerAction.Trigger trigger : BuildTriggerAction.triggersFor(i)) {
-                if (trigger.context.equals(context)) {
-                    // Note that it is a little questionable to cancel the queue item in case it has other causes,
-                    // but in the common case that this is the only cause, it is most intuitive to do so.
-                    // The same applies to aborting the actual build once started.
-                    q.cancel(i);
-                    interrupted = true;
-                }
+    @Override public void onResume() {
+        super.onResume();
+        if (admitting) {
+            // the step itself is not persisted, so we no longer know what to schedule
+            getContext().onFailure(new AbortException("Jenkins was restarted while waiting to trigger " + jobName));
+            return;
+        }
+        StepContext context = getContext();
+        BuildTriggerRegistry.reconcile();
+        BuildTriggerRegistry.register(context, this);
+        if (BuildTriggerRegistry.forContext(context) != null) {
+            return; // queued or running, and the listeners will tell us when it is done
+        }
+        Run<?,?> run = null;
+        BuildTriggerRegistry.Entry entry = queueId != 0 ? BuildTriggerRegistry.forQueueId(queueId) : null;
+        if (entry != null) {
+            // indexed from disk by BuildTriggerRegistry.reconcile before we resumed, so not yet linked to us
+            run = entry.run;
+            if (run == null) {
+                BuildTriggerRegistry.resumed(context, queueId, null);
+                return;
             }
+            runId = run.getExternalizableId();
+        } else {
+            // not yet indexed, such as a queue item loaded after reconcile ran
+            Queue.Item item = queueId != 0 ? Queue.getInstance().getItem(queueId) : null;
+            if (item != null && !(item instanceof Queue.LeftItem)) {
+                BuildTriggerRegistry.resumed(context, queueId, null);
+                return;
+            }
+            run = findDownstream();
         }
-
-        // if there's any in-progress build already, abort that.
-        // when the build is actually aborted, BuildTriggerListener will take notice and report the failure,
-        // so this method shouldn't call getContext().onFailure()
-        for (Computer c : jenkins.getComputers()) {
-            for (Executor e : c.getExecutors()) {
-                interrupted |= maybeInterrupt(e, cause, context);
+        if (run == null) {
+            LOGGER.log(Level.FINE, "{0} could not find queue item #{1} or its build", new Object[] {context, queueId});
+        } else if (run.isBuilding() && !waitForStart) {
+            BuildTriggerRegistry.resumed(context, queueId, run);
+        } else {
+            // started or finished while Jenkins was not running, or before the outcome could be delivered;
+            // should the outcome have been delivered after all, this one is ignored
+            LOGGER.log(Level.FINE, "{0} found {1} already {2}", new Object[] {context, run, run.isBuilding() ? "started" : "completed"});
+            BuildTriggerRegistry.unregister(context);
+            Result result = run.getResult();
+            if (run.isBuilding() || result == Result.SUCCESS || Boolean.FALSE.equals(propagate)) {
+                context.onSuccess(new RunWrapper(run, false));
+            } else {
+                context.onFailure(new FlowInterruptedException(result != null ? result : Result.FAILURE, new DownstreamFailureCause(run)));
             }
-            for (Executor e : c.getOneOffExecutors()) {
-                interrupted |= maybeInterrupt(e, cause, context);
+        }
+    }
+
+    /** Looks for our downstream build after a restart, when the listeners have not seen it. */
+    private @CheckForNull Run<?,?> findDownstream() {
+        String id = runId;
+        if (id != null) {
+            return Run.fromExternalizableId(id);
+        }
+        if (queueId == 0 || jobName == null) {
+            return null;
+        }
+        // started just before the restart, before we could record it
+        Job<?,?> job = Jenkins.getActiveInstance().getItemByFullName(jobName, Job.class);
+        if (job == null) {
+            return null;
+        }
+        for (Run<?,?> r : job.getBuilds().limit(RESUME_SEARCH_LIMIT)) {
+            if (r.getQueueId() == queueId) {
+                return r;
             }
         }
+        return null;
+    }
 
-        if (!interrupted) {
-            super.stop(cause);
+    private static List<ParameterValue> completeDefaultParameters(List<ParameterValue> parameters, Job<?,?> project) throws AbortException {
+        Map<String,ParameterValue> allParameters = new HashMap<>();
+        for (ParameterValue pv : parameters) {
+            allParameters.put(pv.getName(), pv);
+        }
+        if (project == null) {
+            return Lists.newArrayList(allParameters.values());
         }
+        return completeDefaultParameters(allParameters, ParameterDefinitionCache.of(project));
     }
-    private static boolean maybeInterrupt(Executor e, Throwable cause, StepContext context) {
-        boolean interrupted = false;
-        Queue.Executable exec = e.getCurrentExecutable();
-        if (exec instanceof Run) {
-            for (BuildTriggerAction.Trigger trigger : BuildTriggerAction.triggersFor((Run) exec)) {
-                if (trigger.context.equals(context)) {
-                    e.interrupt(Result.ABORTED, new BuildTriggerCancelledCause(cause));
-                    trigger.interruption = cause;
-                    try {
-                        ((Run) exec).save();
-                    } catch (IOException x) {
-                        LOGGER.log(Level.WARNING, "failed to save interrupt cause on " + exec, x);
+
+    /** @param allParameters supplied parameters by name */
+    static List<ParameterValue> completeDefaultParameters(Map<String,ParameterValue> allParameters, ParameterDefinitionCache.Definitions definitions) throws AbortException {
+        int defined = 0;
+        for (ParameterValue pv : allParameters.values()) {
+            ParameterDefinition pDef = definitions.byName.get(pv.getName());
+            if (pDef == null) {
+                continue;
+            }
+            defined++;
+            Set<String> choices = definitions.choices.get(pDef.getName());
+            if (choices != null && !choices.contains(pv.getValue())) {
+                throw new AbortException("Value for choice parameter '" + pDef.getName() + "' is '" + pv.getValue() + "', "
+                        + "but valid choices are " + ((ChoiceParameterDefinition)pDef).getChoices());
+            }
+            // Get the description of specified parameters here. UI submission of parameters uses formatted description.
+            pv.setDescription(pDef.getDescription());
+        }
+        List<ParameterValue> completed = new ArrayList<>(definitions.definitions.size() + allParameters.size());
+        if (defined < definitions.definitions.size()) {
+            for (ParameterDefinition pDef : definitions.definitions) {
+                if (!allParameters.containsKey(pDef.getName())) {
+                    // computed afresh for each build, since ParameterValue is mutable (see setDescription above)
+                    ParameterValue defaultP = pDef.getDefaultParameterValue();
+                    if (defaultP != null) {
+                        completed.add(defaultP);
                     }
-                    interrupted = true;
                 }
             }
         }
-        return interrupted;
+        completed.addAll(allParameters.values());
+        return completed;
     }
 
-    @Override public String getStatus() {
-        for (Queue.Item i : Queue.getInstance().getItems()) {
-            for (BuildTriggerAction.Trigger trigger : BuildTriggerAction.triggersFor(i)) {
-                if (trigger.context.equals(getContext())) {
-                    return "waiting to schedule " + i.task.getFullDisplayName() + "; blocked: " + i.getWhy();
+    @Override
+    public void stop(Throwable cause) throws Exception {
+        StepContext context = getContext();
+        synchronized (this) {
+            stopped = true;
+            if (admitting) {
+                admitting = false;
+                admission = null;
+                if (retry != null) {
+                    BuildTriggerThrottle.cancelWait(retry);
+                }
+                if (retryAfterRefusal != null) {
+                    retryAfterRefusal.cancel(false);
+                    retryAfterRefusal = null;
                 }
+                context.onFailure(cause);
+                return;
             }
         }
-        for (Computer c : Jenkins.getActiveInstance().getComputers()) {
-            for (Executor e : c.getExecutors()) {
-                String r = running(e);
-                if (r != null) {
-                    return r;
-                }
+        BuildTriggerRegistry.Entry entry = BuildTriggerRegistry.forContext(context);
+        long id;
+        Run<?,?> run;
+        Executor executor = null;
+        if (entry != null) {
+            id = entry.queueId;
+            run = entry.run;
+            executor = entry.executor;
+        } else {
+            // if 0, started before queue item IDs were recorded, so the queue and executors will be scanned
+            id = queueId;
+            String _runId = runId;
+            run = _runId != null ? Run.fromExternalizableId(_runId) : null;
+        }
+        // keyed by upstream build so that aborting it handles all its steps together; after a restart we may not know it
+        String upstream = invokingRun != null ? invokingRun.getExternalizableId() : context.toString();
+        BuildTriggerCancellation.cancel(upstream, new BuildTriggerCancellation.Request(context, upstreamId(), null, cause, id, run, executor, () -> context.onFailure(cause)));
+    }
+
+    @Override public String getStatus() {
+        synchronized (this) {
+            if (admitting) {
+                String status = "waiting to trigger " + jobName + ": " + admission;
+                String counts = jobName != null && invokingRun != null ? BuildTriggerThrottle.describe(jobName, invokingRun.getExternalizableId()) : null;
+                return counts != null ? status + " (" + counts + ")" : status;
             }
-            for (Executor e : c.getOneOffExecutors()) {
-                String r = running(e);
-                if (r != null) {
-                    return r;
-                }
+        }
+        BuildTriggerRegistry.Entry entry = BuildTriggerRegistry.forContext(getContext());
+        Run<?,?> run = entry != null ? entry.run : null;
+        String id = runId;
+        if (run == null && id != null) {
+            run = Run.fromExternalizableId(id);
+        }
+        if (run != null) {
+            return "running " + run;
+        }
+        Queue.Item i = queueId != 0 ? Queue.getInstance().getItem(queueId) : null;
+        if (i instanceof Queue.LeftItem) {
+            Queue.Executable exec = ((Queue.LeftItem) i).getExecutable();
+            if (exec != null) {
+                return "running " + exec;
+            } else if (((Queue.LeftItem) i).isCancelled()) {
+                return "downstream build of " + i.task.getFullDisplayName() + " was cancelled";
             }
+        } else if (i != null) {
+            return "waiting to schedule " + i.task.getFullDisplayName() + "; blocked: " + i.getWhy();
         }
-        // TODO QueueTaskFuture does not allow us to record the queue item ID
         return "unsure what happened to downstream build";
     }
-    private @CheckForNull String running(@Nonnull Executor e) {
-        Queue.Executable exec = e.getCurrentExecutable();
-        if (exec instanceof Run) {
-            Run<?,?> run = (Run) exec;
-            for (BuildTriggerAction.Trigger trigger : BuildTriggerAction.triggersFor(run)) {
-                if (trigger.context.equals(getContext())) {
-                    return "running " + run;
-                }
-            }
-        }
-        return null;
+
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
     }
 
     private static final long serialVersionUID = 1L;
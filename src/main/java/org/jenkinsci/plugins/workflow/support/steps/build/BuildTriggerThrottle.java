@@ -0,0 +1,357 @@
+package org.jenkinsci.plugins.workflow.support.steps.build;
+
+import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.model.Run;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Limits how many downstream builds the build steps may have queued or running, per target job and per upstream build,
+ * and how fast they may trigger builds of any one job.
+ * Steps over the limit wait inside their executions instead of flooding the Jenkins queue.
+ * All limits default to 0, meaning unlimited, and may be set with system properties or from the script console;
+ * while none is set, triggers are not counted at all.
+ */
+final class BuildTriggerThrottle {
+
+    private static final Logger LOGGER = Logger.getLogger(BuildTriggerThrottle.class.getName());
+
+    /** Maximum number of queue items of any one job triggered by build steps. */
+    @Restricted(NoExternalUse.class)
+    static /* not final */ int MAX_QUEUED_PER_JOB = SystemProperties.getInteger(BuildTriggerThrottle.class.getName() + ".maxQueuedPerJob", 0);
+
+    /** Maximum number of queued or running builds of any one job triggered by build steps. */
+    @Restricted(NoExternalUse.class)
+    static /* not final */ int MAX_IN_FLIGHT_PER_JOB = SystemProperties.getInteger(BuildTriggerThrottle.class.getName() + ".maxInFlightPerJob", 0);
+
+    /** Maximum number of queued or running builds triggered by any one upstream build. */
+    @Restricted(NoExternalUse.class)
+    static /* not final */ int MAX_IN_FLIGHT_PER_UPSTREAM = SystemProperties.getInteger(BuildTriggerThrottle.class.getName() + ".maxInFlightPerUpstream", 0);
+
+    /** Maximum rate of triggers of any one job, per second, allowing bursts of as many. */
+    @Restricted(NoExternalUse.class)
+    static /* not final */ int TRIGGERS_PER_SECOND_PER_JOB = SystemProperties.getInteger(BuildTriggerThrottle.class.getName() + ".triggersPerSecondPerJob", 0);
+
+    private static final class Counts {
+        int queued;
+        int inFlight;
+        /** Token bucket for {@link #TRIGGERS_PER_SECOND_PER_JOB}. */
+        double tokens = -1;
+        long lastRefill;
+        boolean isEmpty() {
+            return queued == 0 && inFlight == 0;
+        }
+    }
+
+    /** A queue item we are counting. */
+    private static final class Tracked {
+        final String job;
+        final String upstream;
+        boolean queued = true;
+        Tracked(String job, String upstream) {
+            this.job = job;
+            this.upstream = upstream;
+        }
+    }
+
+    private static final Map<String,Counts> byJob = new HashMap<>();
+    private static final Map<String,Integer> byUpstream = new HashMap<>();
+    private static final Map<Long,Tracked> byQueueId = new HashMap<>();
+    /** Reservations from {@link #tryAdmit} not yet followed by {@link #scheduled} or {@link #unreserve}, by job and upstream build. */
+    private static final Map<List<String>,Integer> reserved = new HashMap<>();
+    /**
+     * Queue items which left the queue while some reservation was outstanding, and whether they will be counted no more,
+     * in case {@link #scheduled} learns of them only afterwards; most recent last.
+     */
+    private static final Map<Long,Boolean> departed = new LinkedHashMap<Long,Boolean>() {
+        @Override protected boolean removeEldestEntry(Map.Entry<Long,Boolean> eldest) {
+            return size() > 1000;
+        }
+    };
+    /** Whether anything is counted or reserved, so that the listeners need not take the lock otherwise. */
+    private static volatile boolean active;
+    private static final Set<Runnable> waiters = new LinkedHashSet<>();
+    private static boolean retryScheduled;
+
+    private BuildTriggerThrottle() {}
+
+    /** Whether any limit is set; if not, triggers are admitted without being counted. */
+    private static boolean limited() {
+        return MAX_QUEUED_PER_JOB > 0 || MAX_IN_FLIGHT_PER_JOB > 0 || MAX_IN_FLIGHT_PER_UPSTREAM > 0 || TRIGGERS_PER_SECOND_PER_JOB > 0;
+    }
+
+    /**
+     * Tries to reserve room for one more trigger.
+     * If this returns null, the caller must follow up with {@link #scheduled} or {@link #unreserve}.
+     * @param job full name of the target job
+     * @param upstream externalizable ID of the upstream build
+     * @return null if admitted, else the reason why not
+     */
+    static @CheckForNull String tryAdmit(@Nonnull String job, @Nonnull String upstream) {
+        if (!limited()) {
+            return null; // nothing reserved, so scheduled and unreserve will have nothing to do
+        }
+        synchronized (BuildTriggerThrottle.class) {
+            Counts counts = byJob.get(job);
+            if (counts == null) {
+                counts = new Counts();
+            }
+            if (MAX_QUEUED_PER_JOB > 0 && counts.queued >= MAX_QUEUED_PER_JOB) {
+                return counts.queued + " builds of " + job + " already queued";
+            }
+            if (MAX_IN_FLIGHT_PER_JOB > 0 && counts.inFlight >= MAX_IN_FLIGHT_PER_JOB) {
+                return counts.inFlight + " builds of " + job + " already queued or running";
+            }
+            int upstreamInFlight = byUpstream.getOrDefault(upstream, 0);
+            if (MAX_IN_FLIGHT_PER_UPSTREAM > 0 && upstreamInFlight >= MAX_IN_FLIGHT_PER_UPSTREAM) {
+                return upstreamInFlight + " downstream builds of " + upstream + " already queued or running";
+            }
+            if (TRIGGERS_PER_SECOND_PER_JOB > 0) {
+                long now = System.nanoTime();
+                if (counts.tokens < 0) {
+                    counts.tokens = TRIGGERS_PER_SECOND_PER_JOB;
+                } else {
+                    counts.tokens = Math.min(TRIGGERS_PER_SECOND_PER_JOB, counts.tokens + (now - counts.lastRefill) * TRIGGERS_PER_SECOND_PER_JOB / 1e9);
+                }
+                counts.lastRefill = now;
+                if (counts.tokens < 1) {
+                    byJob.put(job, counts); // remember the bucket
+                    return "more than " + TRIGGERS_PER_SECOND_PER_JOB + " builds of " + job + " triggered per second";
+                }
+                counts.tokens--;
+            }
+            counts.queued++;
+            counts.inFlight++;
+            byJob.put(job, counts);
+            byUpstream.put(upstream, upstreamInFlight + 1);
+            reserved.merge(Arrays.asList(job, upstream), 1, Integer::sum);
+            active = true;
+            return null;
+        }
+    }
+
+    /** Turns a reservation into a tracked queue item, or drops it if the item was coalesced with one we already track. */
+    static void scheduled(@Nonnull String job, @Nonnull String upstream, @Nonnull Queue.Item item) {
+        if (!active) {
+            return;
+        }
+        long queueId = item.getId();
+        synchronized (BuildTriggerThrottle.class) {
+            if (!unreserved(job, upstream)) {
+                return;
+            }
+            // BuildQueueListener.onLeft, or even BuildTriggerListener.onCompleted, may already have come and gone
+            Boolean done = departed.remove(queueId);
+            if (byQueueId.containsKey(queueId) || Boolean.TRUE.equals(done)) {
+                release(job, upstream, true);
+            } else {
+                Tracked tracked = new Tracked(job, upstream);
+                byQueueId.put(queueId, tracked);
+                if (done == null) {
+                    return; // nothing released
+                }
+                tracked.queued = false;
+                Counts counts = byJob.get(job);
+                if (counts != null) {
+                    counts.queued--;
+                }
+            }
+            idle();
+        }
+        wake();
+    }
+
+    /** Gives back a reservation which was not used. */
+    static void unreserve(@Nonnull String job, @Nonnull String upstream) {
+        if (!active) {
+            return;
+        }
+        synchronized (BuildTriggerThrottle.class) {
+            if (!unreserved(job, upstream)) {
+                return;
+            }
+            release(job, upstream, true);
+            idle();
+        }
+        wake();
+    }
+
+    /**
+     * Called when a queue item leaves the queue, whether to be built or because it was cancelled.
+     * @param done whether it will not be followed by {@link #completed}: cancelled, or not a {@link Job} and so never turned into a {@link Run}
+     */
+    static void left(long queueId, boolean done) {
+        if (!active) {
+            return;
+        }
+        synchronized (BuildTriggerThrottle.class) {
+            Tracked tracked = byQueueId.get(queueId);
+            if (tracked == null) {
+                if (!reserved.isEmpty()) {
+                    departed.put(queueId, done);
+                }
+                return;
+            }
+            if (!tracked.queued) {
+                return;
+            }
+            if (done) {
+                byQueueId.remove(queueId);
+                release(tracked.job, tracked.upstream, true);
+            } else {
+                tracked.queued = false;
+                Counts counts = byJob.get(tracked.job);
+                if (counts != null) {
+                    counts.queued--;
+                }
+            }
+            idle();
+        }
+        wake();
+    }
+
+    /** Called when a build completes. */
+    static void completed(long queueId) {
+        if (!active) {
+            return;
+        }
+        synchronized (BuildTriggerThrottle.class) {
+            Tracked tracked = byQueueId.remove(queueId);
+            if (tracked == null) {
+                if (!reserved.isEmpty()) {
+                    departed.put(queueId, true);
+                }
+                return;
+            }
+            release(tracked.job, tracked.upstream, tracked.queued);
+            idle();
+        }
+        wake();
+    }
+
+    /** Uses up a reservation, if {@link #tryAdmit} made one. */
+    private static boolean unreserved(String job, String upstream) {
+        assert Thread.holdsLock(BuildTriggerThrottle.class);
+        List<String> key = Arrays.asList(job, upstream);
+        Integer n = reserved.get(key);
+        if (n == null) {
+            return false; // admitted while unlimited
+        }
+        if (n <= 1) {
+            reserved.remove(key);
+            if (reserved.isEmpty()) {
+                departed.clear();
+            }
+        } else {
+            reserved.put(key, n - 1);
+        }
+        return true;
+    }
+
+    private static void idle() {
+        assert Thread.holdsLock(BuildTriggerThrottle.class);
+        active = !byQueueId.isEmpty() || !reserved.isEmpty();
+    }
+
+    private static void release(String job, String upstream, boolean queued) {
+        assert Thread.holdsLock(BuildTriggerThrottle.class);
+        Counts counts = byJob.get(job);
+        if (counts != null) {
+            if (queued) {
+                counts.queued--;
+            }
+            counts.inFlight--;
+            if (counts.isEmpty() && TRIGGERS_PER_SECOND_PER_JOB <= 0) {
+                byJob.remove(job);
+            }
+        }
+        Integer n = byUpstream.get(upstream);
+        if (n != null) {
+            if (n <= 1) {
+                byUpstream.remove(upstream);
+            } else {
+                byUpstream.put(upstream, n - 1);
+            }
+        }
+    }
+
+    /**
+     * Asks to be called back when it may be worth calling {@link #tryAdmit} again.
+     * That is after some capacity is released, and at least once a second in case of rate limiting.
+     */
+    static void waitFor(@Nonnull Runnable retry) {
+        synchronized (BuildTriggerThrottle.class) {
+            waiters.add(retry);
+            if (retryScheduled) {
+                return;
+            }
+            retryScheduled = true;
+        }
+        Timer.get().schedule(new Runnable() {
+            @Override public void run() {
+                synchronized (BuildTriggerThrottle.class) {
+                    retryScheduled = false;
+                }
+                wake();
+            }
+        }, 1, TimeUnit.SECONDS);
+    }
+
+    static synchronized void cancelWait(@Nonnull Runnable retry) {
+        waiters.remove(retry);
+    }
+
+    private static void wake() {
+        final List<Runnable> toRun;
+        synchronized (BuildTriggerThrottle.class) {
+            if (waiters.isEmpty()) {
+                return;
+            }
+            toRun = new ArrayList<>(waiters);
+            waiters.clear();
+        }
+        Timer.get().submit(new Runnable() {
+            @Override public void run() {
+                for (Runnable r : toRun) {
+                    try {
+                        r.run();
+                    } catch (RuntimeException x) {
+                        LOGGER.log(Level.WARNING, null, x);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Summarizes current counters, for {@link org.jenkinsci.plugins.workflow.steps.StepExecution#getStatus}.
+     * @return null if no limit is set, so there is nothing to count
+     */
+    static @CheckForNull String describe(@Nonnull String job, @Nonnull String upstream) {
+        if (!limited()) {
+            return null;
+        }
+        synchronized (BuildTriggerThrottle.class) {
+            Counts counts = byJob.get(job);
+            return job + ": " + (counts != null ? counts.queued : 0) + " queued, " + (counts != null ? counts.inFlight : 0) + " in flight; "
+                    + upstream + ": " + byUpstream.getOrDefault(upstream, 0) + " in flight";
+        }
+    }
+
+}
@@ -0,0 +1,85 @@
+package org.jenkinsci.plugins.workflow.support.steps.build;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.model.ParameterValue;
+import java.io.Serializable;
+import java.util.List;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+/**
+ * One downstream build requested by {@link BuildAllStep}.
+ * The options mean the same as those of {@link BuildTriggerStep}.
+ */
+public class DownstreamBuild extends AbstractDescribableImpl<DownstreamBuild> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String job;
+    private List<ParameterValue> parameters;
+    private boolean propagate = true;
+    private Integer quietPeriod;
+    private String key;
+
+    @DataBoundConstructor
+    public DownstreamBuild(String job) {
+        this.job = job;
+    }
+
+    public String getJob() {
+        return job;
+    }
+
+    public List<ParameterValue> getParameters() {
+        return parameters;
+    }
+
+    @DataBoundSetter public void setParameters(List<ParameterValue> parameters) {
+        this.parameters = parameters;
+    }
+
+    public boolean isPropagate() {
+        return propagate;
+    }
+
+    @DataBoundSetter public void setPropagate(boolean propagate) {
+        this.propagate = propagate;
+    }
+
+    public Integer getQuietPeriod() {
+        return quietPeriod;
+    }
+
+    @DataBoundSetter public void setQuietPeriod(Integer quietPeriod) {
+        this.quietPeriod = quietPeriod;
+    }
+
+    /** Name of this build in the map returned by {@code buildAll}, if not simply {@link #getJob}. */
+    public @CheckForNull String getKey() {
+        return key;
+    }
+
+    @DataBoundSetter public void setKey(String key) {
+        this.key = Util.fixEmpty(key);
+    }
+
+    @Nonnull String effectiveKey() {
+        return key != null ? key : job;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<DownstreamBuild> {
+
+        @Override
+        public String getDisplayName() {
+            return "Downstream build";
+        }
+
+    }
+
+}
@@ -0,0 +1,192 @@
+package org.jenkinsci.plugins.workflow.support.steps.build;
+
+import hudson.model.InvisibleAction;
+import hudson.model.Run;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.util.Timer;
+import org.jenkinsci.plugins.workflow.actions.PersistentAction;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.flow.FlowExecutionOwner;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Attached to the flow node of a {@code build} or {@code buildAll} step to list the builds it triggered,
+ * the reverse of {@link BuildUpstreamNodeAction}.
+ * Saved with the flow graph of the upstream build, and updated when each build is queued and again when it starts,
+ * so that visualisations need not scan downstream jobs to find them.
+ * Updates after the first are written in batches by {@link BuildTriggerPersistence}.
+ */
+@ExportedBean
+public final class DownstreamBuildAction extends InvisibleAction implements PersistentAction {
+
+    private static final Logger LOGGER = Logger.getLogger(DownstreamBuildAction.class.getName());
+
+    /** Serializes updates, which may come from the step and from executor threads at once. */
+    private static final Object LOCK = new Object();
+
+    /** One triggered build, possibly still queued. */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Entry {
+
+        private final String jobFullName;
+        private final long queueId;
+        private @CheckForNull String runId;
+
+        Entry(@Nonnull String jobFullName, long queueId) {
+            this.jobFullName = jobFullName;
+            this.queueId = queueId;
+        }
+
+        @Exported
+        public @Nonnull String getJobFullName() {
+            return jobFullName;
+        }
+
+        @Exported
+        public long getQueueId() {
+            return queueId;
+        }
+
+        /** {@link Run#getExternalizableId} once the build has started. */
+        @Exported
+        public @CheckForNull String getRunId() {
+            return runId;
+        }
+
+        /** Loads the build, if it has started and still exists. */
+        public @CheckForNull Run<?,?> getRun() {
+            return runId != null ? Run.fromExternalizableId(runId) : null;
+        }
+
+    }
+
+    private final List<Entry> downstreamBuilds = new ArrayList<>();
+
+    @Exported
+    public List<Entry> getDownstreamBuilds() {
+        synchronized (LOCK) {
+            return Collections.unmodifiableList(new ArrayList<>(downstreamBuilds));
+        }
+    }
+
+    /**
+     * Looks up the builds triggered by one step.
+     * @param upstreamRunId as in {@link BuildUpstreamNodeAction#getUpstreamRunId}
+     * @param upstreamNodeId as in {@link BuildUpstreamNodeAction#getUpstreamNodeId}
+     * @return the builds, or an empty list if the step triggered none or cannot be found
+     */
+    public static @Nonnull List<Entry> of(@Nonnull String upstreamRunId, @Nonnull String upstreamNodeId) {
+        FlowNode node = nodeOf(upstreamRunId, upstreamNodeId);
+        DownstreamBuildAction action = node != null ? node.getPersistentAction(DownstreamBuildAction.class) : null;
+        return action != null ? action.getDownstreamBuilds() : Collections.<Entry>emptyList();
+    }
+
+    /** Records that a step has put a build in the queue. */
+    static void queued(@Nonnull FlowNode node, @Nonnull String jobFullName, long queueId) {
+        synchronized (LOCK) {
+            DownstreamBuildAction action = node.getPersistentAction(DownstreamBuildAction.class);
+            boolean added = action == null;
+            if (added) {
+                action = new DownstreamBuildAction();
+            } else if (action.find(queueId) != null) {
+                return; // coalesced into a build this step already triggered
+            }
+            action.downstreamBuilds.add(new Entry(jobFullName, queueId));
+            save(node, action, added);
+        }
+    }
+
+    /** Records that a step has reused an existing build rather than triggering one. */
+    static void reused(@Nonnull FlowNode node, @Nonnull Run<?,?> run) {
+        synchronized (LOCK) {
+            DownstreamBuildAction action = node.getPersistentAction(DownstreamBuildAction.class);
+            boolean added = action == null;
+            if (added) {
+                action = new DownstreamBuildAction();
+            } else if (action.find(run.getQueueId()) != null) {
+                return;
+            }
+            Entry entry = new Entry(run.getParent().getFullName(), run.getQueueId());
+            entry.runId = run.getExternalizableId();
+            action.downstreamBuilds.add(entry);
+            save(node, action, added);
+        }
+    }
+
+    /** Records the start of a build carrying {@link BuildUpstreamNodeAction}s. */
+    static void started(@Nonnull Run<?,?> run) {
+        List<BuildUpstreamNodeAction> upstreams = run.getActions(BuildUpstreamNodeAction.class);
+        if (upstreams.isEmpty()) {
+            return;
+        }
+        // loading the upstream build is no business of the executor thread
+        Timer.get().submit(() -> {
+            for (BuildUpstreamNodeAction upstream : upstreams) {
+                FlowNode node = nodeOf(upstream.getUpstreamRunId(), upstream.getUpstreamNodeId());
+                if (node == null || node.getExecution().isComplete()) {
+                    continue; // the flow graph of a completed build is no longer written
+                }
+                synchronized (LOCK) {
+                    DownstreamBuildAction action = node.getPersistentAction(DownstreamBuildAction.class);
+                    boolean added = action == null;
+                    if (added) {
+                        action = new DownstreamBuildAction();
+                    }
+                    Entry entry = action.find(run.getQueueId());
+                    if (entry == null) {
+                        entry = new Entry(run.getParent().getFullName(), run.getQueueId());
+                        action.downstreamBuilds.add(entry);
+                    }
+                    entry.runId = run.getExternalizableId();
+                    save(node, action, added);
+                }
+            }
+        });
+    }
+
+    private @CheckForNull Entry find(long queueId) {
+        for (Entry entry : downstreamBuilds) {
+            if (entry.queueId == queueId) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private static void save(FlowNode node, DownstreamBuildAction action, boolean added) {
+        if (added) {
+            node.addAction(action); // persists the node
+            return;
+        }
+        // merged with other pending saves, so that a buildAll of many builds does not rewrite the growing action once per build
+        BuildTriggerPersistence.saveLater(node);
+    }
+
+    private static @CheckForNull FlowNode nodeOf(String upstreamRunId, String upstreamNodeId) {
+        Run<?,?> upstream = Run.fromExternalizableId(upstreamRunId);
+        if (!(upstream instanceof FlowExecutionOwner.Executable)) {
+            return null;
+        }
+        try {
+            FlowExecutionOwner owner = ((FlowExecutionOwner.Executable) upstream).asFlowExecutionOwner();
+            if (owner == null) {
+                return null;
+            }
+            FlowExecution execution = owner.get();
+            return execution.getNode(upstreamNodeId);
+        } catch (IOException x) {
+            LOGGER.log(Level.FINE, "could not load " + upstreamNodeId + " in " + upstreamRunId, x);
+            return null;
+        }
+    }
+
+}
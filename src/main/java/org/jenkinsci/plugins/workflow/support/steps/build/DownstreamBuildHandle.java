@@ -0,0 +1,104 @@
+package org.jenkinsci.plugins.workflow.support.steps.build;
+
+import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.model.Run;
+import java.io.Serializable;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.whitelists.Whitelisted;
+
+/**
+ * Returned by {@code build(job: …, returnHandle: true)} in place of waiting.
+ * Pass it to {@code awaitBuilds} to wait for the downstream build later.
+ * Records the queue item ID at once, and the build once it has been found.
+ */
+public final class DownstreamBuildHandle implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String job;
+    private final long queueId;
+    private final boolean propagate;
+    /** {@link System#currentTimeMillis} when scheduled; the build cannot have been created earlier. */
+    private final long scheduled;
+    private @CheckForNull String runId;
+
+    DownstreamBuildHandle(@Nonnull String job, long queueId, boolean propagate) {
+        this.job = job;
+        this.queueId = queueId;
+        this.propagate = propagate;
+        this.scheduled = System.currentTimeMillis();
+    }
+
+    /** For a build which already exists, as when reused. */
+    DownstreamBuildHandle(@Nonnull String job, @Nonnull Run<?,?> run, boolean propagate) {
+        this(job, run.getQueueId(), propagate);
+        this.runId = run.getExternalizableId();
+    }
+
+    /** Full name of the downstream job. */
+    @Whitelisted
+    public String getJob() {
+        return job;
+    }
+
+    @Whitelisted
+    public long getQueueId() {
+        return queueId;
+    }
+
+    boolean isPropagate() {
+        return propagate;
+    }
+
+    /**
+     * Finds the downstream build, if it has started.
+     * Looks in memory first, then at recently started builds of the job.
+     */
+    @CheckForNull Run<?,?> getRun() {
+        if (runId != null) {
+            return Run.fromExternalizableId(runId);
+        }
+        Run<?,?> run = null;
+        BuildTriggerRegistry.Entry entry = BuildTriggerRegistry.forQueueId(queueId);
+        if (entry != null) {
+            run = entry.run;
+        }
+        if (run == null) {
+            Queue.Item item = Queue.getInstance().getItem(queueId);
+            if (item instanceof Queue.LeftItem) {
+                Queue.Executable exec = ((Queue.LeftItem) item).getExecutable();
+                if (exec instanceof Run) {
+                    run = (Run<?,?>) exec;
+                }
+            } else if (item != null) {
+                return null; // still queued
+            }
+        }
+        if (run == null) {
+            Job<?,?> j = Jenkins.getActiveInstance().getItemByFullName(job, Job.class);
+            if (j != null) {
+                for (Run<?,?> r : j.getBuilds()) {
+                    if (r.getQueueId() == queueId) {
+                        run = r;
+                        break;
+                    }
+                    if (r.getTimeInMillis() < scheduled) {
+                        break; // created before we were scheduled, as will be all older builds
+                    }
+                }
+            }
+        }
+        if (run != null) {
+            runId = run.getExternalizableId();
+        }
+        return run;
+    }
+
+    @Override public String toString() {
+        return job + " (queue item #" + queueId + ")";
+    }
+
+}
@@ -24,28 +24,67 @@
 
 package org.jenkinsci.plugins.workflow.support.steps.build;
 
+import hudson.Util;
 import hudson.model.Run;
 import javax.annotation.CheckForNull;
 import jenkins.model.CauseOfInterruption;
 
 /**
  * Indicates that an upstream build failed because of a downstream build’s status.
+ * Remembers enough about the downstream build to be displayed without loading it.
  */
 public final class DownstreamFailureCause extends CauseOfInterruption {
 
     private static final long serialVersionUID = 1;
 
     private final String id;
+    /** Snapshots taken on creation; null if deserialized from an older version. */
+    private final @CheckForNull String fullDisplayName;
+    private final @CheckForNull String url;
+    private final @CheckForNull String result;
+    private final long duration;
 
     DownstreamFailureCause(Run<?, ?> downstream) {
         id = downstream.getExternalizableId();
+        fullDisplayName = downstream.getFullDisplayName();
+        url = downstream.getUrl();
+        result = String.valueOf(downstream.getResult());
+        duration = downstream.getDuration();
     }
 
+    /** Loads the downstream build, if it still exists. */
     public @CheckForNull Run<?, ?> getDownstreamBuild() {
         return Run.fromExternalizableId(id);
     }
 
+    /** {@link Run#getFullDisplayName} of the downstream build. */
+    public @CheckForNull String getFullDisplayName() {
+        return fullDisplayName;
+    }
+
+    /** {@link Run#getUrl} of the downstream build, relative to the context path. */
+    public @CheckForNull String getUrl() {
+        return url;
+    }
+
+    /** {@link Run#getResult} of the downstream build. */
+    public @CheckForNull String getResult() {
+        return result;
+    }
+
+    /** {@link Run#getDuration} of the downstream build, in milliseconds. */
+    public long getDuration() {
+        return duration;
+    }
+
+    public String getDurationString() {
+        return Util.getTimeSpanString(duration);
+    }
+
     @Override public String getShortDescription() {
+        if (fullDisplayName != null) {
+            return fullDisplayName + " completed with status " + result + " after " + getDurationString() + " (propagate: false to ignore)";
+        }
         Run<?, ?> downstream = getDownstreamBuild();
         if (downstream != null) {
             return downstream.getFullDisplayName() + " completed with status " + downstream.getResult() + " (propagate: false to ignore)";
@@ -0,0 +1,165 @@
+package org.jenkinsci.plugins.workflow.support.steps.build;
+
+import hudson.Extension;
+import hudson.model.AutoCompletionCandidates;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Items;
+import hudson.model.Queue;
+import hudson.model.listeners.ItemListener;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Sorted index of the full names of all buildable items, for {@link BuildTriggerStep.DescriptorImpl#doAutoCompleteJob}.
+ * Relative names typed by the user are resolved against the context to a prefix of full names,
+ * and the names under it are read in order, stepping over the contents of each subfolder as a trie walk would,
+ * so the cost depends on the number of candidates rather than on the size of the item tree.
+ * Built on first use and then kept current by {@link Listener}; only the candidates returned are checked for {@link Item#READ}.
+ */
+final class JobNameIndex {
+
+    /** Maximum number of candidates offered at once. */
+    @Restricted(NoExternalUse.class)
+    static /* not final */ int MAX_CANDIDATES = SystemProperties.getInteger(JobNameIndex.class.getName() + ".maxCandidates", 100);
+
+    /** Full names of {@link Queue.Task}s, or null until first used. */
+    private static volatile NavigableSet<String> names;
+
+    private JobNameIndex() {}
+
+    private static NavigableSet<String> names() {
+        NavigableSet<String> _names = names;
+        if (_names == null) {
+            synchronized (JobNameIndex.class) {
+                _names = names;
+                if (_names == null) {
+                    _names = new ConcurrentSkipListSet<>();
+                    // the index is shared by all users, so it must list everything
+                    try (ACLContext ctx = ACL.as(ACL.SYSTEM)) {
+                        for (Item item : Jenkins.getActiveInstance().getAllItems(Item.class)) {
+                            if (item instanceof Queue.Task) {
+                                _names.add(item.getFullName());
+                            }
+                        }
+                    }
+                    names = _names;
+                }
+            }
+        }
+        return _names;
+    }
+
+    /**
+     * Offers the names of buildable items beginning with what was typed, as {@link AutoCompletionCandidates#ofJobNames} would.
+     * Names are relative to {@code container}, or absolute if they begin with {@code /}, and may begin with {@code ../}.
+     * Items within subfolders of what was typed are offered only once the user has typed the folder name and a {@code /}.
+     */
+    static AutoCompletionCandidates complete(@CheckForNull ItemGroup<?> container, @Nonnull String value) {
+        AutoCompletionCandidates candidates = new AutoCompletionCandidates();
+        String base = container != null ? container.getFullName() : "";
+        String shown = "";
+        String rest = value;
+        if (rest.startsWith("/")) {
+            base = "";
+            shown = "/";
+            rest = rest.substring(1);
+        } else {
+            while (rest.startsWith("../") && !base.isEmpty()) {
+                int slash = base.lastIndexOf('/');
+                base = slash == -1 ? "" : base.substring(0, slash);
+                shown += "../";
+                rest = rest.substring(3);
+            }
+        }
+        String prefix = base.isEmpty() ? rest : base + '/' + rest;
+        NavigableSet<String> _names = names();
+        Jenkins jenkins = Jenkins.getActiveInstance();
+        int found = 0;
+        String name = _names.ceiling(prefix);
+        while (name != null && name.startsWith(prefix) && found < MAX_CANDIDATES) {
+            int slash = name.indexOf('/', prefix.length());
+            if (slash != -1) {
+                // inside a subfolder of what was typed, so skip past all of it; ('/' + 1) sorts right after its contents
+                name = _names.ceiling(name.substring(0, slash) + (char) ('/' + 1));
+                continue;
+            }
+            // getItemByFullName also checks READ on each enclosing folder
+            Item item = jenkins.getItemByFullName(name, Item.class);
+            if (item != null && item.hasPermission(Item.READ)) {
+                candidates.add(shown + (base.isEmpty() ? name : name.substring(base.length() + 1)));
+                found++;
+            }
+            name = _names.higher(name);
+        }
+        return candidates;
+    }
+
+    /** Adds an item and, if it is a folder, everything in it. */
+    private static void add(NavigableSet<String> _names, Item item) {
+        if (item instanceof Queue.Task) {
+            _names.add(item.getFullName());
+        }
+        if (item instanceof ItemGroup) {
+            try (ACLContext ctx = ACL.as(ACL.SYSTEM)) {
+                for (Item child : Items.getAllItems((ItemGroup<?>) item, Item.class)) {
+                    if (child instanceof Queue.Task) {
+                        _names.add(child.getFullName());
+                    }
+                }
+            }
+        }
+    }
+
+    /** Removes a name and everything which was inside it. */
+    private static void remove(NavigableSet<String> _names, String fullName) {
+        _names.remove(fullName);
+        _names.subSet(fullName + '/', fullName + (char) ('/' + 1)).clear();
+    }
+
+    @Extension public static final class Listener extends ItemListener {
+
+        @Override public void onLoaded() {
+            names = null;
+        }
+
+        @Override public void onCreated(Item item) {
+            NavigableSet<String> _names = names;
+            if (_names != null) {
+                add(_names, item);
+            }
+        }
+
+        @Override public void onCopied(Item src, Item item) {
+            onCreated(item);
+        }
+
+        @Override public void onDeleted(Item item) {
+            NavigableSet<String> _names = names;
+            if (_names != null) {
+                remove(_names, item.getFullName());
+            }
+        }
+
+        /** Called for each item within a moved or renamed folder too. */
+        @Override public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            NavigableSet<String> _names = names;
+            if (_names != null) {
+                _names.remove(oldFullName);
+                if (item instanceof Queue.Task) {
+                    _names.add(newFullName);
+                }
+            }
+        }
+
+    }
+
+}
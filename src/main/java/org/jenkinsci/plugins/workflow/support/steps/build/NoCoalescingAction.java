@@ -0,0 +1,19 @@
+package org.jenkinsci.plugins.workflow.support.steps.build;
+
+import hudson.model.Action;
+import hudson.model.InvisibleAction;
+import hudson.model.Queue;
+import java.util.List;
+
+/**
+ * Keeps the queue from folding a downstream build into another item, or other items into it,
+ * for {@link BuildTriggerStep.Coalescing#NEVER}.
+ * Works alike for parameterized jobs and other tasks, since the queue consults every {@link Queue.QueueAction} on either side.
+ */
+final class NoCoalescingAction extends InvisibleAction implements Queue.QueueAction {
+
+    @Override public boolean shouldSchedule(List<Action> actions) {
+        return true;
+    }
+
+}
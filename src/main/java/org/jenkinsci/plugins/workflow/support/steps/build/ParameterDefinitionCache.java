@@ -0,0 +1,120 @@
+package org.jenkinsci.plugins.workflow.support.steps.build;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.ChoiceParameterDefinition;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.ParameterDefinition;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Remembers the parameter definitions of downstream jobs, so that triggering a build need not walk them all.
+ * Entries are kept by full name, and are dropped whenever their job is saved, deleted, renamed or moved.
+ * An entry is not trusted if the job has since been given another {@link ParametersDefinitionProperty}.
+ */
+final class ParameterDefinitionCache {
+
+    private static final AtomicLong versions = new AtomicLong();
+
+    /** The parameters of one job, as of some point in time. */
+    static final class Definitions {
+
+        /**
+         * Only weakly held, since {@link ParametersDefinitionProperty#owner} would otherwise keep the job itself alive.
+         * Cleared once the job has been given another property, which will not match it either.
+         */
+        private final @Nonnull Reference<ParametersDefinitionProperty> property;
+
+        /** Distinguishes these definitions from any others computed since startup, for use in cache keys. */
+        final long version = versions.incrementAndGet();
+
+        /** In the order defined. */
+        final List<ParameterDefinition> definitions;
+
+        final Map<String,ParameterDefinition> byName = new HashMap<>();
+
+        /** Allowed values of {@link ChoiceParameterDefinition}s, by name. */
+        final Map<String,Set<String>> choices = new HashMap<>();
+
+        Definitions(@CheckForNull ParametersDefinitionProperty property) {
+            this.property = new WeakReference<>(property);
+            definitions = property != null ? new ArrayList<>(property.getParameterDefinitions()) : Collections.<ParameterDefinition>emptyList();
+            for (ParameterDefinition pDef : definitions) {
+                byName.put(pDef.getName(), pDef);
+                if (pDef instanceof ChoiceParameterDefinition) {
+                    choices.put(pDef.getName(), new HashSet<>(((ChoiceParameterDefinition) pDef).getChoices()));
+                }
+            }
+        }
+
+        boolean isFor(@CheckForNull ParametersDefinitionProperty property) {
+            return property == null ? definitions.isEmpty() : this.property.get() == property;
+        }
+
+    }
+
+    /** By {@link Job#getFullName}, sorted so that everything within a folder can be dropped at once. */
+    private static final NavigableMap<String,Definitions> cache = new ConcurrentSkipListMap<>();
+
+    private ParameterDefinitionCache() {}
+
+    static @Nonnull Definitions of(@Nonnull Job<?,?> job) {
+        ParametersDefinitionProperty property = job.getProperty(ParametersDefinitionProperty.class);
+        String fullName = job.getFullName();
+        Definitions definitions = cache.get(fullName);
+        if (definitions == null || !definitions.isFor(property)) {
+            definitions = new Definitions(property);
+            cache.put(fullName, definitions);
+        }
+        return definitions;
+    }
+
+    static boolean isCached(@Nonnull String fullName) {
+        return cache.containsKey(fullName);
+    }
+
+    /** Drops a name and everything which was inside it. */
+    static void invalidate(@Nonnull String fullName) {
+        cache.remove(fullName);
+        cache.subMap(fullName + '/', fullName + (char) ('/' + 1)).clear();
+    }
+
+    @Extension public static final class Invalidator extends SaveableListener {
+        @Override public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof Job) {
+                invalidate(((Job<?,?>) o).getFullName());
+            }
+        }
+    }
+
+    @Extension public static final class ItemInvalidator extends ItemListener {
+
+        @Override public void onDeleted(Item item) {
+            invalidate(item.getFullName());
+        }
+
+        @Override public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            invalidate(oldFullName);
+        }
+
+    }
+
+}
@@ -0,0 +1,75 @@
+package org.jenkinsci.plugins.workflow.support.steps.build;
+
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import hudson.model.Queue;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.model.ParameterizedJobMixIn;
+
+/**
+ * Tells the {@code build} step the quiet period of a {@link Queue.Task} which is not a {@link ParameterizedJobMixIn.ParameterizedJob}.
+ * Tasks not handled by any implementation are checked for a public {@code int getQuietPeriod()} method,
+ * and otherwise get the global quiet period.
+ */
+public abstract class QuietPeriodProvider implements ExtensionPoint {
+
+    private static final Logger LOGGER = Logger.getLogger(QuietPeriodProvider.class.getName());
+
+    /**
+     * Determines the quiet period of a task.
+     * @param task a task about to be scheduled
+     * @return a quiet period in seconds, or null if this implementation does not handle this kind of task
+     */
+    public abstract @CheckForNull Integer getQuietPeriod(@Nonnull Queue.Task task);
+
+    /** {@code getQuietPeriod} methods by task class, or null if there is none. */
+    private static final ClassValue<Method> GET_QUIET_PERIOD = new ClassValue<Method>() {
+        @Override protected Method computeValue(Class<?> type) {
+            Method m;
+            try {
+                m = type.getMethod("getQuietPeriod");
+            } catch (NoSuchMethodException | SecurityException x) {
+                return null; // best effort only
+            }
+            if (m.getReturnType() != int.class || Modifier.isStatic(m.getModifiers())) {
+                return null;
+            }
+            try {
+                m.setAccessible(true); // the declaring class might not be public
+            } catch (RuntimeException x) {
+                LOGGER.log(Level.FINE, "cannot make " + m + " accessible", x);
+            }
+            return m;
+        }
+    };
+
+    /**
+     * Finds the quiet period of a task from some {@link QuietPeriodProvider} or else its {@code getQuietPeriod} method.
+     * @return a quiet period in seconds, or null if unknown
+     */
+    static @CheckForNull Integer of(@Nonnull Queue.Task task) {
+        for (QuietPeriodProvider provider : ExtensionList.lookup(QuietPeriodProvider.class)) {
+            Integer quietPeriod = provider.getQuietPeriod(task);
+            if (quietPeriod != null) {
+                return quietPeriod;
+            }
+        }
+        Method getQuietPeriod = GET_QUIET_PERIOD.get(task.getClass());
+        if (getQuietPeriod == null) {
+            return null;
+        }
+        try {
+            return (Integer) getQuietPeriod.invoke(task);
+        } catch (IllegalAccessException | InvocationTargetException | RuntimeException x) {
+            LOGGER.log(Level.FINE, "Could not determine quiet period of " + task.getFullDisplayName(), x);
+            return null;
+        }
+    }
+
+}
@@ -1,27 +1,55 @@
 package org.jenkinsci.plugins.workflow.support.steps.build.BuildTriggerStep;
 def st = namespace('jelly:stapler')
 def l = namespace('/lib/layout')
+def f = namespace('/lib/form')
+def jobName = request.getParameter('job')
+def contextName = request.getParameter('context')
+// Cf. BuildTriggerStepExecution:
+def job = my.findJob(jobName, contextName)
+def pdp = job instanceof jenkins.model.ParameterizedJobMixIn.ParameterizedJob && job instanceof hudson.model.Job ? job.getProperty(hudson.model.ParametersDefinitionProperty) : null
+if (pdp != null) {
+    // unchanged since the browser last asked, so it may show what it has
+    def etag = my.parametersETag(job)
+    response.setHeader('ETag', etag)
+    response.setHeader('Cache-Control', 'private, no-cache')
+    if (etag == request.getHeader('If-None-Match')) {
+        response.setStatus(304)
+        return
+    }
+}
 l.ajax {
-    def jobName = request.getParameter('job')
     if (jobName != null) {
-        // Cf. BuildTriggerStepExecution:
-        def contextName = request.getParameter('context')
-        def context = contextName != null ? app.getItemByFullName(contextName) : null
-        def job = app.getItem(jobName, (hudson.model.Item) context, hudson.model.Item)
-        if (job instanceof jenkins.model.ParameterizedJobMixIn.ParameterizedJob) {
-            def pdp = job.getProperty(hudson.model.ParametersDefinitionProperty)
-            if (pdp != null) {
-                // Cf. ParametersDefinitionProperty/index.jelly:
-                table(width: '100%', class: 'parameters') {
-                    for (parameterDefinition in pdp.parameterDefinitions) {
-                        tbody {
+        if (pdp != null) {
+            def definitions = my.parameterDefinitions(job)
+            def start = Math.min(Math.max((request.getParameter('start') ?: '0') as int, 0), definitions.size())
+            def end = Math.min(start + my.parametersPageSize, definitions.size())
+            // Cf. ParametersDefinitionProperty/index.jelly:
+            table(width: '100%', class: 'parameters') {
+                for (parameterDefinition in definitions.subList(start, end)) {
+                    tbody {
+                        if (my.isLoadChoicesSeparately(parameterDefinition)) {
+                            // Cf. ChoiceParameterDefinition/index.jelly, but filled in by loadChoices in config.jelly:
+                            def choicesUrl = "${rootURL}/${my.descriptorUrl}/choices?job=${URLEncoder.encode(jobName, 'UTF-8')}&context=${URLEncoder.encode(contextName ?: '', 'UTF-8')}&name=${URLEncoder.encode(parameterDefinition.name, 'UTF-8')}"
+                            f.entry(title: parameterDefinition.name, description: parameterDefinition.formattedDescription) {
+                                div(name: 'parameter', description: parameterDefinition.formattedDescription) {
+                                    input(type: 'hidden', name: 'name', value: parameterDefinition.name)
+                                    def defaultValue = parameterDefinition.defaultParameterValue?.value
+                                    select(name: 'value', 'data-choices-url': choicesUrl) {
+                                        option(value: defaultValue, selected: 'selected', defaultValue)
+                                    }
+                                }
+                            }
+                        } else {
                             // TODO JENKINS-26578 does not work for CredentialsParameterDefinition: pulldown is not populated because select.js is never loaded; <script> section in https://github.com/jenkinsci/credentials-plugin/commit/1045207207fb69d4dc1ede70d7ab743ad463708c not executed
                             st.include(it: parameterDefinition, page: parameterDefinition.descriptor.valuePage)
                         }
                     }
                 }
-            } else {
-                text("${job.fullDisplayName} is not parameterized")
+            }
+            if (end < definitions.size()) {
+                div(class: 'build-step-parameters-more') {
+                    a(href: '#', onclick: "return loadParams(${end})", "Show ${definitions.size() - end} more parameters")
+                }
             }
         } else if (job instanceof hudson.model.Queue.Task) {
             text("${job.fullDisplayName} is not parameterized")
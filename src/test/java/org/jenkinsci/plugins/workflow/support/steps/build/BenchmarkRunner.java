@@ -0,0 +1,34 @@
+package org.jenkinsci.plugins.workflow.support.steps.build;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * Runs the {@code *Benchmark} classes in this package.
+ * Not picked up by a normal build; use {@code mvn test -Dbenchmark}.
+ * The benchmarks use stubs rather than {@link org.jvnet.hudson.test.JenkinsRule}, so they need no network or Jenkins home.
+ */
+public class BenchmarkRunner {
+
+    @Test public void runBenchmarks() throws Exception {
+        Options options = new OptionsBuilder()
+                .include(BenchmarkRunner.class.getPackage().getName() + "\\..*Benchmark")
+                .forks(Integer.getInteger("benchmark.forks", 1))
+                .warmupIterations(Integer.getInteger("benchmark.warmupIterations", 3))
+                .warmupTime(TimeValue.seconds(1))
+                .measurementIterations(Integer.getInteger("benchmark.measurementIterations", 5))
+                .measurementTime(TimeValue.seconds(1))
+                .timeUnit(TimeUnit.NANOSECONDS)
+                .shouldFailOnError(true)
+                .resultFormat(ResultFormatType.JSON)
+                .result("target/jmh-report.json")
+                .build();
+        new Runner(options).run();
+    }
+
+}
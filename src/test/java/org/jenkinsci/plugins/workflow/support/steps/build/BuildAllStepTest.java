@@ -0,0 +1,79 @@
+package org.jenkinsci.plugins.workflow.support.steps.build;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.Result;
+import hudson.model.StringParameterDefinition;
+import java.io.IOException;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.BuildWatcher;
+import org.jvnet.hudson.test.FailureBuilder;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.SleepBuilder;
+
+public class BuildAllStepTest {
+
+    @ClassRule public static BuildWatcher buildWatcher = new BuildWatcher();
+    @Rule public JenkinsRule j = new JenkinsRule();
+
+    @Before public void runQuickly() throws IOException {
+        j.jenkins.setQuietPeriod(0);
+    }
+
+    @Test public void fanOut() throws Exception {
+        j.createFreeStyleProject("ds1");
+        FreeStyleProject ds2 = j.createFreeStyleProject("ds2");
+        ds2.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("which", "first")));
+        WorkflowJob us = j.jenkins.createProject(WorkflowJob.class, "us");
+        us.setDefinition(new CpsFlowDefinition(
+            "def r = buildAll builds: [[job: 'ds1'], [job: 'ds2'], [job: 'ds2', key: 'again', parameters: [string(name: 'which', value: 'second')]]], maxInFlight: 1\n" +
+            "echo \"ds1=${r.ds1.number} ds2=${r.ds2.number} again=${r.again.number} ${r.again.buildVariables.which}\"", true));
+        j.assertLogContains("ds1=1 ds2=1 again=2 second", j.buildAndAssertSuccess(us));
+    }
+
+    @Test public void failure() throws Exception {
+        j.createFreeStyleProject("good");
+        j.createFreeStyleProject("bad").getBuildersList().add(new FailureBuilder());
+        WorkflowJob us = j.jenkins.createProject(WorkflowJob.class, "us");
+        us.setDefinition(new CpsFlowDefinition("buildAll builds: [[job: 'good'], [job: 'bad']]", true));
+        j.assertBuildStatus(Result.FAILURE, us.scheduleBuild2(0));
+        us.setDefinition(new CpsFlowDefinition("echo \"bad.result=${buildAll(builds: [[job: 'good'], [job: 'bad', propagate: false]]).bad.result}\"", true));
+        j.assertLogContains("bad.result=FAILURE", j.buildAndAssertSuccess(us));
+    }
+
+    @Test public void duplicateKeys() throws Exception {
+        j.createFreeStyleProject("ds");
+        WorkflowJob us = j.jenkins.createProject(WorkflowJob.class, "us");
+        us.setDefinition(new CpsFlowDefinition("buildAll builds: [[job: 'ds'], [job: 'ds']]", true));
+        j.assertLogContains("More than one build is named ds", j.assertBuildStatus(Result.FAILURE, us.scheduleBuild2(0)));
+    }
+
+    @Test public void interrupt() throws Exception {
+        FreeStyleProject ds1 = j.createFreeStyleProject("ds1");
+        ds1.getBuildersList().add(new SleepBuilder(Long.MAX_VALUE));
+        FreeStyleProject ds2 = j.createFreeStyleProject("ds2");
+        ds2.getBuildersList().add(new SleepBuilder(Long.MAX_VALUE));
+        FreeStyleProject ds3 = j.createFreeStyleProject("ds3");
+        WorkflowJob us = j.jenkins.createProject(WorkflowJob.class, "us");
+        us.setDefinition(new CpsFlowDefinition("buildAll builds: [[job: 'ds1'], [job: 'ds2'], [job: 'ds3']], maxInFlight: 2", true));
+        WorkflowRun usb = us.scheduleBuild2(0).waitForStart();
+        FreeStyleBuild ds1b, ds2b;
+        while ((ds1b = ds1.getLastBuild()) == null || (ds2b = ds2.getLastBuild()) == null) {
+            Thread.sleep(100);
+        }
+        usb.doStop();
+        j.assertBuildStatus(Result.ABORTED, j.waitForCompletion(usb));
+        j.assertBuildStatus(Result.ABORTED, j.waitForCompletion(ds1b));
+        j.assertBuildStatus(Result.ABORTED, j.waitForCompletion(ds2b));
+        assertNull(ds3.getLastBuild());
+    }
+
+}
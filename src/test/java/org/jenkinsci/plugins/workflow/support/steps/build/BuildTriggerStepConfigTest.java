@@ -24,8 +24,19 @@
 
 package org.jenkinsci.plugins.workflow.support.steps.build;
 
+import com.gargoylesoftware.htmlunit.WebRequest;
+import com.gargoylesoftware.htmlunit.WebResponse;
+import hudson.model.ChoiceParameterDefinition;
+import hudson.model.FreeStyleProject;
+import hudson.model.ParameterDefinition;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.StringParameterDefinition;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Callable;
 import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.not;
 import org.jenkinsci.plugins.workflow.steps.StepConfigTester;
 import static org.junit.Assert.*;
 import org.junit.Rule;
@@ -43,6 +54,7 @@ public class BuildTriggerStepConfigTest {
         s = new StepConfigTester(r).configRoundTrip(s);
         assertEquals(null, s.getQuietPeriod());
         assertTrue(s.isPropagate());
+        assertEquals(BuildTriggerStep.Coalescing.QUEUED, s.getCoalesce());
         s.setPropagate(false);
         s.setQuietPeriod(5);
         s = new StepConfigTester(r).configRoundTrip(s);
@@ -51,6 +63,20 @@ public class BuildTriggerStepConfigTest {
         s.setQuietPeriod(0);
         s = new StepConfigTester(r).configRoundTrip(s);
         assertEquals(Integer.valueOf(0), s.getQuietPeriod());
+        assertFalse(s.isReturnHandle());
+        s.setReturnHandle(true);
+        s = new StepConfigTester(r).configRoundTrip(s);
+        assertTrue(s.isReturnHandle());
+        assertFalse(s.isWaitForStart());
+        s.setWaitForStart(true);
+        s = new StepConfigTester(r).configRoundTrip(s);
+        assertTrue(s.isWaitForStart());
+        s.setCoalesce(BuildTriggerStep.Coalescing.NEVER);
+        s = new StepConfigTester(r).configRoundTrip(s);
+        assertEquals(BuildTriggerStep.Coalescing.NEVER, s.getCoalesce());
+        s.setCoalesce(BuildTriggerStep.Coalescing.QUEUED);
+        s = new StepConfigTester(r).configRoundTrip(s);
+        assertEquals(BuildTriggerStep.Coalescing.QUEUED, s.getCoalesce());
     }
 
     @Issue("JENKINS-38114")
@@ -62,4 +88,38 @@ public class BuildTriggerStepConfigTest {
         }).replaceFirst("^/", ""), /* TODO why is no content type set? */null).getWebResponse().getContentAsString(), containsString("<dt><code>buildVariables</code></dt>"));
     }
 
-}
\ No newline at end of file
+    @Test public void parametersPage() throws Exception {
+        FreeStyleProject ds = r.createFreeStyleProject("ds");
+        List<ParameterDefinition> definitions = new ArrayList<>();
+        List<String> choices = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            choices.add("c" + i);
+        }
+        definitions.add(new ChoiceParameterDefinition("big", choices.toArray(new String[0]), ""));
+        for (int i = 0; i < 30; i++) {
+            definitions.add(new StringParameterDefinition("p" + i, ""));
+        }
+        ds.addProperty(new ParametersDefinitionProperty(definitions));
+        JenkinsRule.WebClient wc = r.createWebClient();
+        String url = r.jenkins.getDescriptorByType(BuildTriggerStep.DescriptorImpl.class).getDescriptorUrl() + "/";
+        WebResponse rsp = wc.goTo(url + "parameters?job=ds", null).getWebResponse();
+        String html = rsp.getContentAsString();
+        assertThat(html, containsString("p23"));
+        assertThat(html, not(containsString("p24")));
+        assertThat(html, not(containsString("c99")));
+        assertThat(html, containsString("Show 6 more parameters"));
+        html = wc.goTo(url + "parameters?job=ds&start=25", null).getWebResponse().getContentAsString();
+        assertThat(html, containsString("p29"));
+        assertThat(html, not(containsString("p23")));
+        assertThat(html, not(containsString("more parameters")));
+        assertThat(wc.goTo(url + "choices?job=ds&name=big", "application/json").getWebResponse().getContentAsString(), containsString("c99"));
+        String etag = rsp.getResponseHeaderValue("ETag");
+        assertNotNull(etag);
+        WebRequest req = new WebRequest(new URL(r.getURL(), url + "parameters?job=ds"));
+        req.setAdditionalHeader("If-None-Match", etag);
+        assertEquals(304, wc.getPage(req).getWebResponse().getStatusCode());
+        ds.save();
+        assertEquals(200, wc.getPage(req).getWebResponse().getStatusCode());
+    }
+
+}
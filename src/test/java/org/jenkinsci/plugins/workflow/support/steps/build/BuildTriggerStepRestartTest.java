@@ -11,6 +11,7 @@ import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
 import org.jenkinsci.plugins.workflow.cps.CpsFlowExecution;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
 import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
 import org.junit.Assert;
 import org.junit.ClassRule;
 import org.junit.Rule;
@@ -80,6 +81,82 @@ public class BuildTriggerStepRestartTest extends Assert {
         });
     }
 
+    @Test
+    public void reconcileAfterRestart() {
+        story.addStep(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                story.j.jenkins.setNumExecutors(0);
+                story.j.createFreeStyleProject("ds");
+                WorkflowJob us = story.j.jenkins.createProject(WorkflowJob.class, "us");
+                us.setDefinition(new CpsFlowDefinition("parallel a: {build job: 'ds', coalesce: 'NEVER'}, b: {build job: 'ds', coalesce: 'NEVER'}, c: {build job: 'ds', coalesce: 'NEVER'}", true));
+                WorkflowRun b = us.scheduleBuild2(0).waitForStart();
+                ((CpsFlowExecution) b.getExecutionPromise().get()).waitForSuspension();
+                while (story.j.jenkins.getQueue().getItems().length < 3) {
+                    Thread.sleep(100);
+                }
+            }
+        });
+        story.addStep(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                assertFreeStyleProjectsInQueue(3);
+                WorkflowRun b = story.j.jenkins.getItemByFullName("us", WorkflowJob.class).getBuildByNumber(1);
+                ((CpsFlowExecution) b.getExecutionPromise().get()).waitForSuspension();
+                assertLinked(b, 3);
+                story.j.jenkins.setNumExecutors(3);
+                story.j.assertBuildStatusSuccess(story.j.waitForCompletion(b));
+                assertEquals(3, story.j.jenkins.getItemByFullName("ds", FreeStyleProject.class).getBuilds().size());
+            }
+        });
+    }
+
+    @Test
+    public void stopAfterRestart() {
+        story.addStep(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                story.j.jenkins.setNumExecutors(0);
+                story.j.createFreeStyleProject("ds");
+                WorkflowJob us = story.j.jenkins.createProject(WorkflowJob.class, "us");
+                us.setDefinition(new CpsFlowDefinition("parallel a: {build job: 'ds', coalesce: 'NEVER'}, b: {build job: 'ds', coalesce: 'NEVER'}", true));
+                WorkflowRun b = us.scheduleBuild2(0).waitForStart();
+                ((CpsFlowExecution) b.getExecutionPromise().get()).waitForSuspension();
+                while (story.j.jenkins.getQueue().getItems().length < 2) {
+                    Thread.sleep(100);
+                }
+            }
+        });
+        story.addStep(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                WorkflowRun b = story.j.jenkins.getItemByFullName("us", WorkflowJob.class).getBuildByNumber(1);
+                ((CpsFlowExecution) b.getExecutionPromise().get()).waitForSuspension();
+                // so stop cancels the indexed queue items rather than scanning for its triggers
+                assertLinked(b, 2);
+                b.doStop();
+                story.j.assertBuildStatus(Result.ABORTED, story.j.waitForCompletion(b));
+                assertFreeStyleProjectsInQueue(0);
+                assertEquals(0, story.j.jenkins.getItemByFullName("ds", FreeStyleProject.class).getBuilds().size());
+            }
+        });
+    }
+
+    /** Checks that each waiting step was linked to the queue item indexed for it, as {@link BuildTriggerStepExecution#stop} will look it up. */
+    private void assertLinked(WorkflowRun b, int count) throws Exception {
+        int linked = 0;
+        for (StepExecution e : b.getExecution().getCurrentExecutions(false).get()) {
+            if (e instanceof BuildTriggerStepExecution) {
+                BuildTriggerRegistry.Entry entry = BuildTriggerRegistry.forContext(e.getContext());
+                assertNotNull(e.toString(), entry);
+                assertTrue(entry.queueId != 0);
+                assertSame(entry, BuildTriggerRegistry.forQueueId(entry.queueId));
+                linked++;
+            }
+        }
+        assertEquals(count, linked);
+    }
+
     private void assertFreeStyleProjectsInQueue(int count) {
         Queue.Item[] items = story.j.jenkins.getQueue().getItems();
         int actual = 0;
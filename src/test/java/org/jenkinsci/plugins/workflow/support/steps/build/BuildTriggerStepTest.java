@@ -26,8 +26,14 @@ import hudson.model.StringParameterValue;
 import hudson.model.TaskListener;
 import hudson.model.User;
 import hudson.model.queue.QueueTaskFuture;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Calendar;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -42,7 +48,13 @@ import jenkins.scm.impl.mock.MockSCMController;
 import jenkins.scm.impl.mock.MockSCMDiscoverBranches;
 import jenkins.scm.impl.mock.MockSCMNavigator;
 import jenkins.security.QueueItemAuthenticatorConfiguration;
+import net.sf.json.JSONObject;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.StringUtils;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.notNullValue;
 import static org.hamcrest.Matchers.nullValue;
 import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
@@ -52,6 +64,7 @@ import org.jenkinsci.plugins.workflow.flow.FlowExecution;
 import org.jenkinsci.plugins.workflow.graph.FlowNode;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
 import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
 import org.jenkinsci.plugins.workflow.test.steps.SemaphoreStep;
 import static org.junit.Assert.*;
 import org.junit.Before;
@@ -100,7 +113,7 @@ public class BuildTriggerStepTest {
         j.createFreeStyleProject("ds").getBuildersList().add(new FailureBuilder());
         WorkflowJob us = j.jenkins.createProject(WorkflowJob.class, "us");
         us.setDefinition(new CpsFlowDefinition("build 'ds'", true));
-        j.assertBuildStatus(Result.FAILURE, us.scheduleBuild2(0));
+        j.assertLogContains("ds #1 completed with status FAILURE after ", j.assertBuildStatus(Result.FAILURE, us.scheduleBuild2(0)));
         us.setDefinition(new CpsFlowDefinition("echo \"ds.result=${build(job: 'ds', propagate: false).result}\"", true));
         j.assertLogContains("ds.result=FAILURE", j.buildAndAssertSuccess(us));
     }
@@ -127,6 +140,14 @@ public class BuildTriggerStepTest {
         BuildUpstreamNodeAction action = actions.get(0);
         assertEquals("correct upstreamRunId", action.getUpstreamRunId(), lastUpstreamRun.getExternalizableId());
         assertNotNull("valid upstreamNodeId", execution.getNode(action.getUpstreamNodeId()));
+
+        List<DownstreamBuildAction.Entry> downstreamBuilds = DownstreamBuildAction.of(action.getUpstreamRunId(), action.getUpstreamNodeId());
+        assertEquals("reverse index", 1, downstreamBuilds.size());
+        assertEquals("downstream", downstreamBuilds.get(0).getJobFullName());
+        assertEquals(lastDownstreamRun.getQueueId(), downstreamBuilds.get(0).getQueueId());
+        assertEquals(lastDownstreamRun.getExternalizableId(), downstreamBuilds.get(0).getRunId());
+        upstream.getBuildByNumber(1).reload();
+        assertEquals("reverse index persisted", lastDownstreamRun, DownstreamBuildAction.of(action.getUpstreamRunId(), action.getUpstreamNodeId()).get(0).getRun());
     }
 
     @SuppressWarnings("deprecation")
@@ -288,6 +309,229 @@ public class BuildTriggerStepTest {
         j.assertBuildStatus(Result.ABORTED, j.waitForCompletion(dsb));
     }
 
+    @Test public void interruptFlowQueued() throws Exception {
+        j.jenkins.setNumExecutors(0);
+        FreeStyleProject ds = j.createFreeStyleProject("ds");
+        WorkflowJob us = j.jenkins.createProject(WorkflowJob.class, "us");
+        us.setDefinition(new CpsFlowDefinition("build 'ds'", true));
+        WorkflowRun usb = us.scheduleBuild2(0).waitForStart();
+        j.waitForMessage("Scheduling project", usb);
+        ((CpsFlowExecution) usb.getExecutionPromise().get()).waitForSuspension();
+        assertEquals(1, j.jenkins.getQueue().getItems().length);
+        usb.doStop();
+        j.assertBuildStatus(Result.ABORTED, j.waitForCompletion(usb));
+        assertEquals(0, j.jenkins.getQueue().getItems().length);
+        assertNull(ds.getLastBuild());
+    }
+
+    @Test public void interruptFlowFanOut() throws Exception {
+        j.jenkins.setNumExecutors(1);
+        FreeStyleProject ds = j.createFreeStyleProject("ds");
+        ds.setConcurrentBuild(true);
+        ds.getBuildersList().add(new SleepBuilder(Long.MAX_VALUE));
+        WorkflowJob us = j.jenkins.createProject(WorkflowJob.class, "us");
+        us.setDefinition(new CpsFlowDefinition("def branches = [:]; for (int i = 0; i < 10; i++) {branches[\"b$i\"] = {build job: 'ds', coalesce: 'NEVER'}}; parallel branches", true));
+        WorkflowRun usb = us.scheduleBuild2(0).waitForStart();
+        j.waitForMessage("Starting building: ds #1", usb);
+        ((CpsFlowExecution) usb.getExecutionPromise().get()).waitForSuspension();
+        assertEquals(9, j.jenkins.getQueue().getItems().length);
+        FreeStyleBuild dsb = ds.getLastBuild();
+        usb.doStop();
+        j.assertBuildStatus(Result.ABORTED, j.waitForCompletion(usb));
+        j.assertBuildStatus(Result.ABORTED, j.waitForCompletion(dsb));
+        assertEquals(0, j.jenkins.getQueue().getItems().length);
+        assertEquals(1, ds.getBuilds().size());
+    }
+
+    @Test public void status() throws Exception {
+        j.jenkins.setNumExecutors(0);
+        WorkflowJob ds = j.jenkins.createProject(WorkflowJob.class, "ds");
+        ds.setDefinition(new CpsFlowDefinition("semaphore 'ds'", true));
+        WorkflowJob us = j.jenkins.createProject(WorkflowJob.class, "us");
+        us.setDefinition(new CpsFlowDefinition("build 'ds'", true));
+        WorkflowRun usb = us.scheduleBuild2(0).waitForStart();
+        j.waitForMessage("Scheduling project", usb);
+        CpsFlowExecution e = (CpsFlowExecution) usb.getExecutionPromise().get();
+        e.waitForSuspension();
+        assertThat(buildStepStatus(e), containsString("waiting to schedule ds"));
+        j.jenkins.setNumExecutors(2);
+        SemaphoreStep.waitForStart("ds/1", null);
+        assertThat(buildStepStatus(e), containsString("running ds #1"));
+        SemaphoreStep.success("ds/1", null);
+        j.assertBuildStatusSuccess(j.waitForCompletion(usb));
+    }
+
+    @Test public void coalescedCompletionsDispatched() throws Exception {
+        FreeStyleProject ds = j.createFreeStyleProject("ds");
+        WorkflowJob us = j.jenkins.createProject(WorkflowJob.class, "us");
+        us.setDefinition(new CpsFlowDefinition("parallel a: {build job: 'ds', quietPeriod: 5}, b: {build job: 'ds', quietPeriod: 5}, c: {build job: 'ds', quietPeriod: 5}", true));
+        long before = BuildTriggerDispatcher.getDelivered();
+        j.buildAndAssertSuccess(us);
+        assertEquals(1, ds.getBuilds().size());
+        assertThat(BuildTriggerDispatcher.getDelivered() - before, greaterThanOrEqualTo(3L));
+    }
+
+    @Test public void metrics() throws Exception {
+        j.createFreeStyleProject("measured");
+        WorkflowJob us = j.jenkins.createProject(WorkflowJob.class, "us");
+        us.setDefinition(new CpsFlowDefinition("build 'measured'; build job: 'measured', wait: false", true));
+        j.buildAndAssertSuccess(us);
+        j.waitUntilNoActivity();
+        BuildTriggerMetrics.JobMetrics m = BuildTriggerMetrics.getJobs().get("measured");
+        assertNotNull(m);
+        assertEquals(2, m.getTriggers());
+        assertEquals(2, m.getQueue().getCount());
+        assertEquals(2, m.getRun().getCount());
+        assertEquals(0, m.getFailed());
+        JenkinsRule.WebClient wc = j.createWebClient();
+        assertThat(wc.goTo("buildTriggerMetrics/json", "application/json").getWebResponse().getContentAsString(), containsString("\"measured\""));
+        assertThat(wc.goTo("buildTriggerMetrics/").getWebResponse().getContentAsString(), containsString("measured"));
+    }
+
+    @Test public void traces() throws Exception {
+        j.createFreeStyleProject("traced");
+        WorkflowJob mid = j.jenkins.createProject(WorkflowJob.class, "mid");
+        mid.setDefinition(new CpsFlowDefinition("build 'traced'", true));
+        WorkflowJob us = j.jenkins.createProject(WorkflowJob.class, "us");
+        us.setDefinition(new CpsFlowDefinition("build 'mid'", true));
+        boolean old = BuildTraceExporter.ENABLED;
+        BuildTraceExporter.ENABLED = true;
+        try {
+            j.buildAndAssertSuccess(us);
+            j.waitUntilNoActivity();
+        } finally {
+            BuildTraceExporter.ENABLED = old;
+        }
+        File file = new File(j.jenkins.getRootDir(), "logs/build-step-traces/traces.json");
+        JSONObject traced = null, parent = null;
+        for (int i = 0; i < 100 && (traced == null || parent == null); i++) {
+            Thread.sleep(100);
+            if (!file.isFile()) {
+                continue;
+            }
+            for (String line : FileUtils.readLines(file, StandardCharsets.UTF_8)) {
+                JSONObject span = JSONObject.fromObject(line);
+                if (span.getString("name").equals("traced")) {
+                    traced = span;
+                } else if (span.getString("name").equals("mid")) {
+                    parent = span;
+                }
+            }
+        }
+        assertNotNull(traced);
+        assertNotNull(parent);
+        assertEquals(parent.getString("traceId"), traced.getString("traceId"));
+        assertEquals(parent.getString("id"), traced.getString("parentId"));
+        assertFalse(parent.has("parentId"));
+        assertEquals("traced#1", traced.getJSONObject("tags").getString("downstream.run"));
+        assertEquals("mid#1", traced.getJSONObject("tags").getString("upstream.run"));
+        assertEquals("SUCCESS", traced.getJSONObject("tags").getString("result"));
+    }
+
+    @Test public void reuse() throws Exception {
+        WorkflowJob ds = j.jenkins.createProject(WorkflowJob.class, "shared");
+        ds.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("P", "")));
+        ds.setDefinition(new CpsFlowDefinition("semaphore 'shared'", true));
+        WorkflowJob us1 = j.jenkins.createProject(WorkflowJob.class, "us1");
+        us1.setDefinition(new CpsFlowDefinition("echo \"got ${build(job: 'shared', parameters: [string(name: 'P', value: 'x')], reuseWithin: 600).number}\"", true));
+        WorkflowJob us2 = j.jenkins.createProject(WorkflowJob.class, "us2");
+        us2.setDefinition(new CpsFlowDefinition("echo \"got ${build(job: 'shared', parameters: [string(name: 'P', value: 'x')], reuseWithin: 600).number}\"", true));
+        WorkflowRun b1 = us1.scheduleBuild2(0).waitForStart();
+        SemaphoreStep.waitForStart("shared/1", null);
+        WorkflowRun b2 = us2.scheduleBuild2(0).waitForStart();
+        j.waitForMessage("Reusing running build shared #1", b2);
+        SemaphoreStep.success("shared/1", null);
+        j.assertLogContains("got 1", j.assertBuildStatusSuccess(j.waitForCompletion(b1)));
+        j.assertLogContains("got 1", j.assertBuildStatusSuccess(j.waitForCompletion(b2)));
+        WorkflowRun b3 = j.buildAndAssertSuccess(us1);
+        j.assertLogContains("Reusing shared #1", b3);
+        j.assertLogContains("got 1", b3);
+        assertEquals(1, ds.getBuilds().size());
+        assertEquals(2, BuildTriggerMetrics.getJobs().get("shared").getReused());
+        us2.setDefinition(new CpsFlowDefinition("echo \"got ${build(job: 'shared', parameters: [string(name: 'P', value: 'y')], reuseWithin: 600).number}\"", true));
+        WorkflowRun b4 = us2.scheduleBuild2(0).waitForStart();
+        SemaphoreStep.success("shared/2", null);
+        j.assertLogContains("got 2", j.assertBuildStatusSuccess(j.waitForCompletion(b4)));
+    }
+
+    @Test public void coalescingPolicy() throws Exception {
+        WorkflowJob ds = j.jenkins.createProject(WorkflowJob.class, "coalesced");
+        ds.setDefinition(new CpsFlowDefinition("semaphore 'coalesced'", true));
+        WorkflowJob us = j.jenkins.createProject(WorkflowJob.class, "us");
+        us.setDefinition(new CpsFlowDefinition("parallel a: {build job: 'coalesced', quietPeriod: 5, coalesce: 'NEVER'}, b: {build job: 'coalesced', quietPeriod: 5, coalesce: 'NEVER'}", true));
+        WorkflowRun b1 = us.scheduleBuild2(0).waitForStart();
+        SemaphoreStep.success("coalesced/1", null);
+        SemaphoreStep.success("coalesced/2", null);
+        j.assertBuildStatusSuccess(j.waitForCompletion(b1));
+        assertEquals(2, ds.getBuilds().size());
+        us.setDefinition(new CpsFlowDefinition("build job: 'coalesced', coalesce: 'QUEUED_OR_RUNNING'", true));
+        WorkflowRun b2 = us.scheduleBuild2(0).waitForStart();
+        SemaphoreStep.waitForStart("coalesced/3", null);
+        WorkflowRun b3 = us.scheduleBuild2(0).waitForStart();
+        j.waitForMessage("Reusing running build coalesced #3", b3);
+        SemaphoreStep.success("coalesced/3", null);
+        j.assertBuildStatusSuccess(j.waitForCompletion(b2));
+        j.assertBuildStatusSuccess(j.waitForCompletion(b3));
+        assertEquals(3, ds.getBuilds().size());
+    }
+
+    @Test public void throttled() throws Exception {
+        WorkflowJob ds = j.jenkins.createProject(WorkflowJob.class, "limited");
+        ds.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("branch", "")));
+        ds.setDefinition(new CpsFlowDefinition("semaphore 'limited'", true));
+        WorkflowJob us = j.jenkins.createProject(WorkflowJob.class, "us");
+        us.setDefinition(new CpsFlowDefinition("parallel a: {build job: 'limited', parameters: [string(name: 'branch', value: 'a')]}, b: {build job: 'limited', parameters: [string(name: 'branch', value: 'b')]}", true));
+        int old = BuildTriggerThrottle.MAX_IN_FLIGHT_PER_JOB;
+        BuildTriggerThrottle.MAX_IN_FLIGHT_PER_JOB = 1;
+        try {
+            WorkflowRun usb = us.scheduleBuild2(0).waitForStart();
+            SemaphoreStep.waitForStart("limited/1", null);
+            j.waitForMessage("Waiting to trigger limited: 1 builds of limited already queued or running", usb);
+            assertEquals(1, ds.getBuilds().size());
+            SemaphoreStep.success("limited/1", null);
+            SemaphoreStep.success("limited/2", null);
+            j.assertBuildStatusSuccess(j.waitForCompletion(usb));
+            assertEquals(2, ds.getBuilds().size());
+        } finally {
+            BuildTriggerThrottle.MAX_IN_FLIGHT_PER_JOB = old;
+        }
+    }
+
+    @Test public void throttledWhileRunning() throws Exception {
+        WorkflowJob ds = j.jenkins.createProject(WorkflowJob.class, "limited");
+        ds.setDefinition(new CpsFlowDefinition("semaphore 'limited'", true));
+        ds.setConcurrentBuild(true);
+        WorkflowJob us = j.jenkins.createProject(WorkflowJob.class, "us");
+        us.setDefinition(new CpsFlowDefinition("build job: 'limited', wait: false; build job: 'limited', wait: false, coalesce: 'NEVER'", true));
+        int old = BuildTriggerThrottle.MAX_IN_FLIGHT_PER_JOB;
+        BuildTriggerThrottle.MAX_IN_FLIGHT_PER_JOB = 1;
+        try {
+            WorkflowRun usb = us.scheduleBuild2(0).waitForStart();
+            SemaphoreStep.waitForStart("limited/1", null);
+            j.waitForMessage("Waiting to trigger limited: 1 builds of limited already queued or running", usb);
+            // the running build still holds the only slot
+            Thread.sleep(2000);
+            assertEquals(1, ds.getBuilds().size());
+            assertEquals(0, j.jenkins.getQueue().getItems().length);
+            SemaphoreStep.success("limited/1", null);
+            SemaphoreStep.success("limited/2", null);
+            j.assertBuildStatusSuccess(j.waitForCompletion(usb));
+            j.waitUntilNoActivity();
+            assertEquals(2, ds.getBuilds().size());
+        } finally {
+            BuildTriggerThrottle.MAX_IN_FLIGHT_PER_JOB = old;
+        }
+    }
+
+    private static String buildStepStatus(FlowExecution e) throws Exception {
+        for (StepExecution exec : e.getCurrentExecutions(true).get()) {
+            if (exec instanceof BuildTriggerStepExecution) {
+                return exec.getStatus();
+            }
+        }
+        throw new AssertionError("no build step running in " + e);
+    }
+
     @SuppressWarnings("deprecation")
     @Test public void triggerWorkflow() throws Exception {
         WorkflowJob us = j.jenkins.createProject(WorkflowJob.class, "us");
@@ -333,6 +577,44 @@ public class BuildTriggerStepTest {
         j.buildAndAssertSuccess(us);
     }
 
+    @Test public void returnHandle() throws Exception {
+        WorkflowJob ds1 = j.jenkins.createProject(WorkflowJob.class, "ds1");
+        ds1.setDefinition(new CpsFlowDefinition("semaphore 'ds1'", true));
+        j.createFreeStyleProject("ds2").getBuildersList().add(new FailureBuilder());
+        WorkflowJob us = j.jenkins.createProject(WorkflowJob.class, "us");
+        us.setDefinition(new CpsFlowDefinition(
+            "def h1 = build job: 'ds1', returnHandle: true\n" +
+            "def h2 = build job: 'ds2', returnHandle: true, propagate: false\n" +
+            "echo \"scheduled ${h1.job} and ${h2.job}\"\n" +
+            "semaphore 'us'\n" +
+            "def r = awaitBuilds([h1, h2])\n" +
+            "echo \"ds1=${r[0].result} ds2=${r[1].result}\"", true));
+        WorkflowRun usb = us.scheduleBuild2(0).waitForStart();
+        SemaphoreStep.waitForStart("us/1", usb);
+        SemaphoreStep.waitForStart("ds1/1", null);
+        j.assertLogContains("scheduled ds1 and ds2", usb);
+        // ds2 has most likely finished by now, ds1 not:
+        SemaphoreStep.success("us/1", null);
+        SemaphoreStep.success("ds1/1", null);
+        j.assertLogContains("ds1=SUCCESS ds2=FAILURE", j.assertBuildStatusSuccess(j.waitForCompletion(usb)));
+        us.setDefinition(new CpsFlowDefinition("awaitBuilds([build(job: 'ds2', returnHandle: true)])", true));
+        j.assertBuildStatus(Result.FAILURE, us.scheduleBuild2(0));
+    }
+
+    @Test public void waitForStart() throws Exception {
+        WorkflowJob ds = j.jenkins.createProject(WorkflowJob.class, "ds");
+        ds.setDefinition(new CpsFlowDefinition("semaphore 'ds'", true));
+        WorkflowJob us = j.jenkins.createProject(WorkflowJob.class, "us");
+        us.setDefinition(new CpsFlowDefinition("echo \"started #${build(job: 'ds', waitForStart: true).number}\"", true));
+        WorkflowRun usb = j.buildAndAssertSuccess(us);
+        j.assertLogContains("started #1", usb);
+        WorkflowRun dsb = ds.getBuildByNumber(1);
+        assertTrue(dsb.isBuilding());
+        SemaphoreStep.success("ds/1", null);
+        j.assertBuildStatusSuccess(j.waitForCompletion(dsb));
+        assertEquals(Result.SUCCESS, usb.getResult());
+    }
+
     @Test public void rejectedStart() throws Exception {
         j.createFreeStyleProject("ds");
         WorkflowJob us = j.jenkins.createProject(WorkflowJob.class, "us");
@@ -346,6 +628,33 @@ public class BuildTriggerStepTest {
         }
     }
 
+    @Test public void retryRefused() throws Exception {
+        long old = BuildTriggerStepExecution.RETRY_DELAY_MILLIS;
+        BuildTriggerStepExecution.RETRY_DELAY_MILLIS = 10;
+        try {
+            j.createFreeStyleProject("flaky");
+            WorkflowJob us = j.jenkins.createProject(WorkflowJob.class, "us");
+            us.setDefinition(new CpsFlowDefinition("build job: 'flaky', scheduleAttempts: 3", true));
+            WorkflowRun b = j.buildAndAssertSuccess(us);
+            j.assertLogContains("retrying in", b);
+            j.assertLogContains("(attempt 3 of 3)", b);
+            BuildTriggerMetrics.JobMetrics m = BuildTriggerMetrics.getJobs().get("flaky");
+            assertEquals(2, m.getRefused());
+            assertEquals(2, m.getRetried());
+            RefuseTwice.refusals = 0;
+            us.setDefinition(new CpsFlowDefinition("build job: 'flaky', scheduleAttempts: 2", true));
+            j.assertLogContains("Failed to trigger build of flaky after 2 attempts", j.assertBuildStatus(Result.FAILURE, us.scheduleBuild2(0)));
+        } finally {
+            BuildTriggerStepExecution.RETRY_DELAY_MILLIS = old;
+        }
+    }
+    @TestExtension("retryRefused") public static final class RefuseTwice extends Queue.QueueDecisionHandler {
+        static int refusals;
+        @Override public boolean shouldSchedule(Queue.Task p, List<Action> actions) {
+            return p instanceof WorkflowJob || ++refusals > 2;
+        }
+    }
+
     @Issue("JENKINS-25851")
     @Test public void buildVariables() throws Exception {
         j.createFreeStyleProject("ds").addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("param", "default")));
@@ -428,6 +737,22 @@ public class BuildTriggerStepTest {
         ds.setDefinition(new CpsFlowDefinition("echo \"${PARAM1} - ${PARAM2}\"", true));
         j.buildAndAssertSuccess(us);
         j.assertLogContains("first - p2", ds.getLastBuild());
+        // defaults are cached until the job is saved
+        ds.getProperty(ParametersDefinitionProperty.class).getParameterDefinitions().set(1, new StringParameterDefinition("PARAM2", "p2b"));
+        ds.save();
+        j.buildAndAssertSuccess(us);
+        j.assertLogContains("first - p2b", ds.getLastBuild());
+        // each build gets its own default values
+        j.buildAndAssertSuccess(us);
+        assertNotSame(ds.getBuildByNumber(2).getAction(ParametersAction.class).getParameter("PARAM2"), ds.getBuildByNumber(3).getAction(ParametersAction.class).getParameter("PARAM2"));
+        // entries do not outlive the name of their job
+        assertTrue(ParameterDefinitionCache.isCached("ds"));
+        ds.renameTo("ds2");
+        assertFalse(ParameterDefinitionCache.isCached("ds"));
+        ParameterDefinitionCache.of(ds);
+        assertTrue(ParameterDefinitionCache.isCached("ds2"));
+        ds.delete();
+        assertFalse(ParameterDefinitionCache.isCached("ds2"));
     }
 
     @LocalData
@@ -479,6 +804,27 @@ public class BuildTriggerStepTest {
         }
     }
 
+    @Test public void quietPeriodProvider() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            WorkflowJob us = j.jenkins.createProject(WorkflowJob.class, "us");
+            us.setDefinition(new CpsFlowDefinition("build job:'ds', wait:false", true));
+            OrganizationFolder ds = j.jenkins.createProject(OrganizationFolder.class, "ds");
+            ds.getSCMNavigators().add(new MockSCMNavigator(c, new MockSCMDiscoverBranches()));
+            j.waitUntilNoActivity();
+            long start = System.currentTimeMillis();
+            j.buildAndAssertSuccess(us);
+            Queue.Item item = j.jenkins.getQueue().getItem(ds);
+            assertThat(item, instanceOf(Queue.WaitingItem.class));
+            assertThat(((Queue.WaitingItem) item).timestamp.getTimeInMillis() - start, greaterThanOrEqualTo(3600_000L));
+            j.jenkins.getQueue().cancel(item);
+        }
+    }
+    @TestExtension("quietPeriodProvider") public static class HourlyOrgFolders extends QuietPeriodProvider {
+        @Override public Integer getQuietPeriod(Queue.Task task) {
+            return task instanceof OrganizationFolder ? 3600 : null;
+        }
+    }
+
     @Issue("SECURITY-433")
     @Test public void permissions() throws Exception {
         WorkflowJob us = j.jenkins.createProject(WorkflowJob.class, "us");
@@ -591,6 +937,56 @@ public class BuildTriggerStepTest {
         st.assertGenerateSnippet("{'stapler-class':'" + BuildTriggerStep.class.getName() + "', 'job':'ds0'}", "build 'ds0'", us.getAbsoluteUrl() + "configure");
     }
 
+    @Test public void autoCompleteJob() throws Exception {
+        MockFolder d1 = j.createFolder("d1");
+        FreeStyleProject ds = d1.createProject(FreeStyleProject.class, "ds");
+        d1.createProject(MockFolder.class, "sub").createProject(FreeStyleProject.class, "deep");
+        MockFolder d2 = j.createFolder("d2");
+        j.createFreeStyleProject("dx");
+        BuildTriggerStep.DescriptorImpl d = j.jenkins.getDescriptorByType(BuildTriggerStep.DescriptorImpl.class);
+        assertEquals(Collections.singletonList("dx"), d.doAutoCompleteJob(j.jenkins, "d").getValues());
+        assertEquals(Collections.singletonList("d1/ds"), d.doAutoCompleteJob(j.jenkins, "d1/").getValues());
+        assertEquals(Collections.singletonList("d1/sub/deep"), d.doAutoCompleteJob(j.jenkins, "d1/sub/").getValues());
+        assertEquals(Collections.singletonList("../d1/ds"), d.doAutoCompleteJob(d2, "../d1/").getValues());
+        assertEquals(Collections.singletonList("/d1/ds"), d.doAutoCompleteJob(d2, "/d1/d").getValues());
+        assertEquals(Collections.singletonList("ds"), d.doAutoCompleteJob(d1, "").getValues());
+        ds.renameTo("ds2");
+        assertEquals(Collections.singletonList("d1/ds2"), d.doAutoCompleteJob(j.jenkins, "d1/").getValues());
+        d1.delete();
+        assertEquals(Collections.emptyList(), d.doAutoCompleteJob(d2, "../d1/").getValues());
+        j.createFreeStyleProject("dy");
+        j.jenkins.setSecurityRealm(j.createDummySecurityRealm());
+        j.jenkins.setAuthorizationStrategy(new MockAuthorizationStrategy().grant(Jenkins.READ).everywhere().to("dev").grant(Item.READ).onPaths("dy").to("dev"));
+        try (ACLContext ctx = ACL.as(User.get("dev").impersonate())) {
+            assertEquals(Collections.singletonList("dy"), d.doAutoCompleteJob(j.jenkins, "d").getValues());
+        }
+    }
+
+    @Test public void compactTriggerForm() throws Exception {
+        BuildTriggerAction.Trigger trigger = new BuildTriggerAction.Trigger(new StubStepContext(1), "us#1", "7", false, "b", true);
+        String xml = Queue.XSTREAM.toXML(new BuildTriggerAction(trigger));
+        assertThat(xml, containsString("v=\"1\" upstream=\"us#1\" node=\"7\" flags=\"2\" key=\"b\""));
+        assertThat(xml, not(containsString("StubStepContext")));
+        BuildTriggerAction.Trigger loaded = loadTrigger(xml);
+        assertEquals("us#1 7", loaded.id());
+        assertFalse(loaded.propagate);
+        assertTrue(loaded.waitForStart);
+        assertEquals("b", loaded.key);
+        assertNull(loaded.contextIfKnown());
+        // as saved by older versions
+        xml = xml.replaceFirst("<([^ >]+Trigger) [^>]+/>", "<$1><context class=\"" + StubStepContext.class.getName() + "\"><id>2</id></context><propagate>true</propagate><waitForStart>false</waitForStart></$1>");
+        loaded = loadTrigger(xml);
+        assertEquals(new StubStepContext(2), loaded.contextIfKnown());
+        assertTrue(loaded.propagate);
+        assertFalse(loaded.waitForStart);
+    }
+
+    private static BuildTriggerAction.Trigger loadTrigger(String xml) {
+        Queue.WaitingItem item = new Queue.WaitingItem(Calendar.getInstance(), null, new ArrayList<Action>());
+        item.addAction((Action) Queue.XSTREAM.fromXML(xml));
+        return BuildTriggerAction.triggersFor(item).iterator().next();
+    }
+
     @Test
     public void buildStepDocs() throws Exception {
         SnippetizerTester.assertDocGeneration(BuildTriggerStep.class);
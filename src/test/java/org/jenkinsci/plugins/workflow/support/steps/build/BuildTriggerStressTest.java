@@ -0,0 +1,186 @@
+package org.jenkinsci.plugins.workflow.support.steps.build;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.Queue;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.StringParameterDefinition;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.model.queue.QueueListener;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.cps.CpsStepContext;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.FailureBuilder;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.LoggerRule;
+import org.jvnet.hudson.test.TestExtension;
+
+/**
+ * Drives many concurrent {@code build} steps, with a mixture of waiting, fire-and-forget, non-propagating,
+ * coalesced and aborted triggers, and reports latencies, heap growth, and lost or duplicated callbacks.
+ * Skipped unless run explicitly, for example:
+ * {@code mvn test -Dtest=BuildTriggerStressTest -Dstress -Dstress.upstreams=50 -Dstress.branches=100}
+ */
+public class BuildTriggerStressTest {
+
+    private static final Logger LOGGER = Logger.getLogger(BuildTriggerStressTest.class.getName());
+
+    @Rule public JenkinsRule j = new JenkinsRule();
+    @Rule public LoggerRule logging = new LoggerRule();
+
+    private static final int UPSTREAMS = Integer.getInteger("stress.upstreams", 20);
+    private static final int BRANCHES = Integer.getInteger("stress.branches", 50);
+    private static final int EXECUTORS = Integer.getInteger("stress.executors", 50);
+    private static final int TIMEOUT_MINUTES = Integer.getInteger("stress.timeoutMinutes", 15);
+    /** Every so many upstream builds is aborted while its downstream builds are in progress. */
+    private static final int ABORT_EVERY = Integer.getInteger("stress.abortEvery", 10);
+
+    /** When each queue item entered the queue, by ID. */
+    private static final Map<Long,Long> enteredQueue = new ConcurrentHashMap<>();
+    /** Milliseconds from entering the queue to starting, per downstream build. */
+    private static final ConcurrentLinkedQueue<Long> startLatencies = new ConcurrentLinkedQueue<>();
+
+    @Before public void onlyOnRequest() {
+        assumeTrue("run with -Dstress", System.getProperty("stress") != null);
+    }
+
+    @Test public void stress() throws Exception {
+        j.jenkins.setQuietPeriod(0);
+        j.jenkins.setNumExecutors(EXECUTORS);
+        logging.record(CpsStepContext.class, Level.WARNING).capture(10000);
+        FreeStyleProject ds = j.createFreeStyleProject("ds");
+        ds.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("ID", "")));
+        j.createFreeStyleProject("ds-coalesced");
+        FreeStyleProject failing = j.createFreeStyleProject("ds-failing");
+        failing.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("ID", "")));
+        failing.getBuildersList().add(new FailureBuilder());
+        String script =
+            "def branches = [:]\n" +
+            "for (int i = 0; i < " + BRANCHES + "; i++) {\n" +
+            "  def n = i\n" +
+            "  def id = \"${env.JOB_NAME}-${n}\"\n" +
+            "  branches[\"b${n}\"] = {\n" +
+            "    switch (n % 5) {\n" +
+            "      case 0: build job: 'ds-coalesced', quietPeriod: 1; break\n" +
+            "      case 1: build job: 'ds', parameters: [string(name: 'ID', value: id)], wait: false; break\n" +
+            "      case 2: build job: 'ds-failing', parameters: [string(name: 'ID', value: id)], propagate: false; break\n" +
+            "      default: build job: 'ds', parameters: [string(name: 'ID', value: id)]\n" +
+            "    }\n" +
+            "    echo \"done ${n}\"\n" +
+            "  }\n" +
+            "}\n" +
+            "parallel branches\n";
+        List<WorkflowJob> upstreams = new ArrayList<>();
+        for (int i = 0; i < UPSTREAMS; i++) {
+            WorkflowJob us = j.jenkins.createProject(WorkflowJob.class, "us" + i);
+            us.setDefinition(new CpsFlowDefinition(script, true));
+            upstreams.add(us);
+        }
+        long heapBefore = usedHeap();
+        long start = System.nanoTime();
+        long deliveredBefore = BuildTriggerDispatcher.getDelivered();
+        List<WorkflowRun> runs = new ArrayList<>();
+        for (WorkflowJob us : upstreams) {
+            runs.add(us.scheduleBuild2(0).waitForStart());
+        }
+        List<WorkflowRun> aborted = new ArrayList<>();
+        for (int i = 0; i < runs.size(); i += ABORT_EVERY) {
+            WorkflowRun run = runs.get(i);
+            j.waitForMessage("Starting building", run);
+            run.doStop();
+            aborted.add(run);
+        }
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(TIMEOUT_MINUTES);
+        int unfinished = 0;
+        for (WorkflowRun run : runs) {
+            while (run.isBuilding() && System.nanoTime() < deadline) {
+                Thread.sleep(100);
+            }
+            if (run.isBuilding()) {
+                unfinished++;
+            }
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        int lost = 0;
+        for (WorkflowRun run : runs) {
+            if (aborted.contains(run) || run.isBuilding()) {
+                continue;
+            }
+            assertEquals(Result.SUCCESS, run.getResult());
+            String log = JenkinsRule.getLog(run);
+            for (int n = 0; n < BRANCHES; n++) {
+                if (!log.contains("done " + n + "\n")) {
+                    lost++;
+                }
+            }
+        }
+        int duplicates = 0;
+        for (LogRecord record : logging.getRecords()) {
+            if (String.valueOf(record.getMessage()).contains("already completed")) {
+                duplicates++;
+            }
+        }
+        j.waitUntilNoActivity();
+        long heapAfter = usedHeap();
+
+        List<Long> latencies = new ArrayList<>(startLatencies);
+        Collections.sort(latencies);
+        LOGGER.info(String.format("%d build steps from %d upstream builds (%d aborted) in %dms", UPSTREAMS * BRANCHES, UPSTREAMS, aborted.size(), elapsed));
+        LOGGER.info(String.format("trigger to start (ms): p50=%d p95=%d p99=%d max=%d over %d builds",
+                percentile(latencies, 50), percentile(latencies, 95), percentile(latencies, 99), percentile(latencies, 100), latencies.size()));
+        LOGGER.info(String.format("completion callbacks: %d delivered, mean %.2fms, max %.2fms",
+                BuildTriggerDispatcher.getDelivered() - deliveredBefore, BuildTriggerDispatcher.getMeanLatencyMillis(), BuildTriggerDispatcher.getMaxLatencyMillis()));
+        LOGGER.info(String.format("heap: %dKiB before, %dKiB after, growth %dKiB", heapBefore / 1024, heapAfter / 1024, (heapAfter - heapBefore) / 1024));
+        LOGGER.info(String.format("unfinished upstream builds: %d, lost callbacks: %d, duplicate callbacks: %d", unfinished, lost, duplicates));
+        assertEquals("unfinished upstream builds", 0, unfinished);
+        assertEquals("lost callbacks", 0, lost);
+        assertEquals("duplicate callbacks", 0, duplicates);
+    }
+
+    private static long usedHeap() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long percentile(List<Long> sorted, int p) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        return sorted.get(Math.min(sorted.size() - 1, (int) Math.ceil(p / 100.0 * sorted.size()) - 1));
+    }
+
+    @TestExtension("stress") public static class QueueTimes extends QueueListener {
+        @Override public void onEnterWaiting(Queue.WaitingItem wi) {
+            enteredQueue.put(wi.getId(), System.currentTimeMillis());
+        }
+    }
+
+    @TestExtension("stress") public static class StartTimes extends RunListener<Run<?,?>> {
+        @Override public void onStarted(Run<?,?> run, TaskListener listener) {
+            Long entered = enteredQueue.remove(run.getQueueId());
+            if (entered != null && !(run instanceof WorkflowRun)) {
+                startLatencies.add(System.currentTimeMillis() - entered);
+            }
+        }
+    }
+
+}
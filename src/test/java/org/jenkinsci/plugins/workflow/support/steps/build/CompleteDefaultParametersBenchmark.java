@@ -0,0 +1,69 @@
+package org.jenkinsci.plugins.workflow.support.steps.build;
+
+import hudson.model.ChoiceParameterDefinition;
+import hudson.model.ParameterDefinition;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.StringParameterDefinition;
+import hudson.model.StringParameterValue;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Completing supplied parameters with defaults and validating choices,
+ * with definitions cached as in {@link ParameterDefinitionCache} and, for comparison, resolved afresh each time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+public class CompleteDefaultParametersBenchmark {
+
+    @Param({"10", "100"})
+    public int definitions;
+
+    @Param({"10", "5000"})
+    public int choices;
+
+    private ParametersDefinitionProperty property;
+
+    private ParameterDefinitionCache.Definitions cached;
+
+    private Map<String,ParameterValue> supplied;
+
+    @Setup public void setUp() {
+        List<ParameterDefinition> defs = new ArrayList<>();
+        String[] choiceValues = new String[choices];
+        for (int i = 0; i < choices; i++) {
+            choiceValues[i] = "choice" + i;
+        }
+        defs.add(new ChoiceParameterDefinition("CHOICE", choiceValues, null));
+        for (int i = 1; i < definitions; i++) {
+            defs.add(new StringParameterDefinition("PARAM" + i, "default" + i, "description of PARAM" + i));
+        }
+        property = new ParametersDefinitionProperty(defs);
+        cached = new ParameterDefinitionCache.Definitions(property);
+        supplied = new HashMap<>();
+        // the last choice is the worst case for a list scan
+        supplied.put("CHOICE", new StringParameterValue("CHOICE", "choice" + (choices - 1)));
+        for (int i = 1; i < Math.min(definitions, 4); i++) {
+            supplied.put("PARAM" + i, new StringParameterValue("PARAM" + i, "supplied" + i));
+        }
+    }
+
+    @Benchmark public List<ParameterValue> cached() throws Exception {
+        return BuildTriggerStepExecution.completeDefaultParameters(supplied, cached);
+    }
+
+    @Benchmark public List<ParameterValue> uncached() throws Exception {
+        return BuildTriggerStepExecution.completeDefaultParameters(supplied, new ParameterDefinitionCache.Definitions(property));
+    }
+
+}
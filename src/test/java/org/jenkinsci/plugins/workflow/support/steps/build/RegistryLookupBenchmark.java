@@ -0,0 +1,82 @@
+package org.jenkinsci.plugins.workflow.support.steps.build;
+
+import hudson.model.Action;
+import hudson.model.Queue;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * How {@link BuildTriggerStepExecution#stop} and {@link BuildTriggerStepExecution#getStatus} find their downstream build:
+ * through {@link BuildTriggerRegistry}, versus scanning every queue item for a matching trigger as executions from older versions still do.
+ * Executors are scanned the same way as queue items, so the latter stand for both.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@Threads(4)
+public class RegistryLookupBenchmark {
+
+    /** Number of downstream queue items, each with its own waiting step. */
+    @Param({"10", "1000"})
+    public int downstream;
+
+    private StubStepContext[] contexts;
+
+    private List<Queue.Item> items;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Setup public void setUp() {
+        contexts = new StubStepContext[downstream];
+        items = new ArrayList<>();
+        for (int i = 0; i < downstream; i++) {
+            contexts[i] = new StubStepContext(i);
+            List<Action> actions = new ArrayList<>();
+            actions.add(new BuildTriggerAction(contexts[i], true));
+            Queue.WaitingItem item = new Queue.WaitingItem(Calendar.getInstance(), null, actions);
+            items.add(item);
+            BuildTriggerRegistry.queued(item.getId(), BuildTriggerAction.triggersFor(item));
+        }
+    }
+
+    @TearDown public void tearDown() {
+        for (Queue.Item item : items) {
+            BuildTriggerRegistry.done(item.getId(), BuildTriggerAction.triggersFor(item));
+        }
+    }
+
+    private StubStepContext next(Cursor cursor) {
+        cursor.next = (cursor.next + 1) % downstream;
+        return contexts[cursor.next];
+    }
+
+    @Benchmark public long registry(Cursor cursor) {
+        BuildTriggerRegistry.Entry entry = BuildTriggerRegistry.forContext(next(cursor));
+        return entry != null ? entry.queueId : 0;
+    }
+
+    @Benchmark public long scan(Cursor cursor) {
+        StubStepContext context = next(cursor);
+        for (Queue.Item item : items) {
+            for (BuildTriggerAction.Trigger trigger : BuildTriggerAction.triggersFor(item)) {
+                if (context.equals(trigger.contextIfKnown())) {
+                    return item.getId();
+                }
+            }
+        }
+        return 0;
+    }
+
+}
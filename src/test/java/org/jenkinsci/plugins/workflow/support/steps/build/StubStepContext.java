@@ -0,0 +1,54 @@
+package org.jenkinsci.plugins.workflow.support.steps.build;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import hudson.model.Result;
+import org.jenkinsci.plugins.workflow.steps.BodyInvoker;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+
+/** Context which ignores everything, for benchmarks; equal to another with the same ID, as real contexts are. */
+final class StubStepContext extends StepContext {
+
+    private final int id;
+
+    StubStepContext(int id) {
+        this.id = id;
+    }
+
+    @Override public <T> T get(Class<T> key) {
+        return null;
+    }
+
+    @Override public void onSuccess(Object result) {}
+
+    @Override public void onFailure(Throwable t) {}
+
+    @Override public boolean isReady() {
+        return true;
+    }
+
+    @Override public ListenableFuture<Void> saveState() {
+        return Futures.immediateFuture(null);
+    }
+
+    @Override public void setResult(Result r) {}
+
+    @Override public BodyInvoker newBodyInvoker() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override public boolean equals(Object o) {
+        return o instanceof StubStepContext && ((StubStepContext) o).id == id;
+    }
+
+    @Override public int hashCode() {
+        return id;
+    }
+
+    @Override public String toString() {
+        return "StubStepContext#" + id;
+    }
+
+    private static final long serialVersionUID = 1L;
+
+}
@@ -0,0 +1,88 @@
+package org.jenkinsci.plugins.workflow.support.steps.build;
+
+import hudson.model.Action;
+import hudson.model.InvisibleAction;
+import hudson.model.Queue;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * {@link BuildTriggerAction#triggersFor} and {@link BuildTriggerAction#foldIntoExisting} on one queue item,
+ * alone and with one thread coalescing triggers into the item while others read them.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+public class TriggerActionBenchmark {
+
+    /** Number of coalesced triggers on the item. */
+    @Param({"1", "16", "256"})
+    public int triggers;
+
+    private Queue.WaitingItem item;
+
+    private final AtomicInteger contexts = new AtomicInteger();
+
+    @Setup public void setUp() {
+        // no task: foldIntoExisting and triggersFor only look at actions
+        item = new Queue.WaitingItem(Calendar.getInstance(), null, new ArrayList<Action>());
+        item.addAction(new OtherAction());
+        for (int i = 0; i < triggers; i++) {
+            fold(new StubStepContext(contexts.incrementAndGet()));
+        }
+        item.addAction(new OtherAction());
+    }
+
+    @TearDown public void tearDown() {
+        BuildTriggerRegistry.done(item.getId(), BuildTriggerAction.triggersFor(item));
+    }
+
+    private void fold(StubStepContext context) {
+        new BuildTriggerAction(context, true).foldIntoExisting(item, null, Collections.<Action>emptyList());
+    }
+
+    private int countPropagating() {
+        int n = 0;
+        for (BuildTriggerAction.Trigger trigger : BuildTriggerAction.triggersFor(item)) {
+            if (trigger.propagate) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    @Benchmark public int triggersFor() {
+        return countPropagating();
+    }
+
+    @Benchmark @Group("contended") @GroupThreads(3) public int contendedTriggersFor() {
+        return countPropagating();
+    }
+
+    /** Coalesces one more trigger and then drops it, as a {@code waitForStart} trigger would be, so the item stays the same size. */
+    @Benchmark @Group("contended") @GroupThreads(1) public void contendedFoldIntoExisting() {
+        StubStepContext context = new StubStepContext(contexts.incrementAndGet());
+        fold(context);
+        for (BuildTriggerAction.Trigger trigger : BuildTriggerAction.triggersFor(item)) {
+            if (trigger.contextIfKnown() == context) {
+                BuildTriggerAction.remove(item, trigger);
+                BuildTriggerRegistry.unregister(context);
+                break;
+            }
+        }
+    }
+
+    private static final class OtherAction extends InvisibleAction {}
+
+}